@@ -1,23 +1,485 @@
 package tetris;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 /**
  *  PURPOSE: This class defines the AI tetris player.  You cannot compete
  *  against the machine as of yet, only watch.
- * 
- *  NOTES: Due to lack of time, this AI is incredibly dumb: in fact, it makes
- *  all of its moves randomly with no strategy whatsoever.  A good tetris AI
- *  might instead evaluate the lines + score it could obtain by dropping the
- *  current piece in each location on the board, repeating this query under
- *  each available rotation.  It could then choose its best option accordingly.
- * 
+ *
+ *  NOTES: For every new piece, the AI looks for the best place to drop it,
+ *  using one of two strategies.  SEARCH simulates every column under every
+ *  rotation with TetrisSearch and scores the results, guessing at the pieces
+ *  that follow.  BEAM uses TetrisBeam to place the pieces in the preview as
+ *  well, one after the other.  MCTS runs rollouts from the preview on many
+ *  threads with TetrisMCTS, and picks the placement explored the most.
+ *
+ *  SEARCH and BEAM choose among every placement TetrisReach finds the piece
+ *  can reach, including tucks and spins a straight drop would miss.  The AI
+ *  then replays the shortest path there, one action at a time.  If gravity
+ *  or anything else moves the piece off the path, it finds a new path to
+ *  the same placement, and as a last resort steers toward its rotation and
+ *  column before dropping.
+ *
+ *  When an opening book is set, a piece that enters a board found in the
+ *  book is placed as the book says, without any search.
+ *
+ *  The placement has to be found before the piece falls another row, and
+ *  the time between rows shrinks as the level rises.  Each search therefore
+ *  gets a deadline of a share of the current delay, and works as deep as
+ *  that allows: the searches deepen level by level and return the best
+ *  placement of the deepest level they completed, so at high levels the AI
+ *  plays more shallowly instead of holding up the timer.  How often the
+ *  deadline was hit, and the depth each decision reached, are recorded.
+ *
+ *  getMove() plans on the calling thread.  poll() plans on the fork/join
+ *  pool instead, on a copy of the board, and waits for the piece to drop
+ *  until the plan is done, so a game loop polling it is never held up by
+ *  the search; the piece may fall a row or so meanwhile, which the path
+ *  finding makes up for like any other move off the path.
+ *
  *  @author Brenn Berliner, ARCH 486, Spring 2009
  */
 
 public class TetrisAI {
 
+  // Shared, fixed values
+  public static final int SEARCH = 0;  // Strategy identifiers
+  public static final int BEAM = 1;
+  public static final int MCTS = 2;
+  public static final int SEARCH_DEPTH = 3;  // Pieces SEARCH looks ahead to
+
+  // Fixed values
+  private static final int NONE = -1;  // No action to take
+  private static final int BUDGET_SHARE = 2;  // Search for 1/2 the delay
+  private static final int MAX_DEPTH = 16;  // Deepest depth recorded
+
+  // Changeable values
+  private int strategy;  // How to find the placement for each piece
+  private TetrisSearch search;  // Finds the placement of the current piece
+  private TetrisBeam beam;  // Finds it from the preview as well
+  private TetrisMCTS mcts;  // Finds it by rollouts, created when needed
+  private TetrisBook book;  // Placements for the opening, if any
+  private TetrisTable table;  // Evaluations shared by the beam and the tree
+  private boolean stale;  // Whether the table holds evaluations of old weights
+  private int[] types;  // Types of the current and upcoming pieces
+  private Planner planner;  // Plans on the pool, created when needed
+  private boolean pending;  // Whether the planner may still be running
+
+  private TetrisEngine planned;  // Game and piece the target was chosen for
+  private long plannedSerial;
+  private int target;  // Best placement found for that piece
+  private int targetRotation;
+  private int targetCol;
+
+  private TetrisReach reach;  // Placements the piece can get to
+  private int[] pathActions;  // Shortest way to the target
+  private int[] pathStates;  // State of the piece before each action
+  private int pathLength;
+  private int pathPos;  // Next action to take
+
+  private long decisions;  // Statistics since the last reset
+  private long deadlineHits;  // Decisions cut short by the deadline
+  private long[] depths;  // Decisions by the depth they reached
+  private int lastDepth;
+  private long lastTime;  // Duration of the last decision (ns)
+  private long bookMoves;  // Decisions taken from the book
+
 /*** CONSTRUCTOR(s) ***/
 
-  /** PURPOSE: Initialize a new AI player. */
-  public TetrisAI() {}
+  /** PURPOSE: Initialize a new AI player with the given search. */
+  public TetrisAI(TetrisSearch search) {
+    this.strategy = SEARCH;
+    this.search = search;
+    this.table = new TetrisTable();
+    this.beam = new TetrisBeam(search.getWeights(), TetrisBeam.DEFAULT_WIDTH,
+                               TetrisBeam.DEFAULT_DEPTH, this.table);
+    this.types = new int[TetrisEngine.PREVIEW + 1];
+    this.depths = new long[MAX_DEPTH + 1];
+    this.reach = new TetrisReach();
+    this.pathActions = new int[0];
+    this.pathStates = new int[0];
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisAI(double[] weights) {
+    this(new TetrisSearch(weights, SEARCH_DEPTH));
+  }
+
+  /** Alternate constructor #2. */
+  public TetrisAI() {
+    this(TetrisSearch.DEFAULT_WEIGHTS);
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Return the next action the AI wants to take in the given game,
+   *  or -1 if it is waiting for the piece to drop.  The piece drops a row
+   *  every delay of the game.  */
+  public int getMove(TetrisEngine engine) {
+    return this.getMove(engine, engine.getDelay());
+  }
+
+  /** PURPOSE: Return the next action the AI wants to take in the given game,
+   *  when the piece drops a row every delay ms.  */
+  public int getMove(TetrisEngine engine, int delay) {
+    this.finish();
+    if (engine.isLanded()) return NONE;
+
+    if (this.isNewPiece(engine)) {
+      TetrisPiece piece = engine.getPiece();
+      this.decide(engine.getBoard(), piece.getType(), piece.getRotation(),
+                  piece.getRow(), piece.getCol(), this.prepare(engine, delay));
+    }
+    return this.follow(engine);
+  }
+
+  /** PURPOSE: Return the next action the AI wants to take in the given game,
+   *  as getMove() does, but plan for a new piece on the fork/join pool, and
+   *  return -1 until the plan is done rather than wait for it.  */
+  public int poll(TetrisEngine engine, int delay) {
+    if (this.pending) {
+      if (!this.planner.isDone()) return NONE;  // Still planning
+      this.finish();
+    }
+    if (engine.isLanded()) return NONE;
+
+    if (this.isNewPiece(engine)) {
+      if (this.planner == null) this.planner = new Planner(this);
+      this.planner.start(engine, this.prepare(engine, delay));
+      this.pending = true;
+      return NONE;
+    }
+    return this.follow(engine);
+  }
+
+  /** PURPOSE: Wait for the plan started by poll(), if any. */
+  private void finish() {
+    if (this.pending) {
+      this.pending = false;
+      this.planner.join();
+    }
+  }
+
+  /** PURPOSE: Return whether poll() is still planning on the pool. */
+  public boolean isPlanning() {
+    return this.pending && !this.planner.isDone();
+  }
+
+  /** PURPOSE: Return whether the piece of the given game is not the one the
+   *  target was chosen for.  */
+  private boolean isNewPiece(TetrisEngine engine) {
+    return engine != this.planned ||
+           engine.getSerial() != this.plannedSerial;
+  }
+
+  /** PURPOSE: Take the types of the piece of the given game and the ones
+   *  after it, as the piece to plan for, and return the deadline of its
+   *  plan, when it drops a row every delay ms.  */
+  private long prepare(TetrisEngine engine, int delay) {
+    this.types[0] = engine.getPiece().getType();
+    for (int num = 1; num < this.types.length; num++) {
+      this.types[num] = engine.getNext(num - 1);
+    }
+    this.planned = engine;
+    this.plannedSerial = engine.getSerial();
+    return System.nanoTime() + (delay * 1000000L / BUDGET_SHARE);
+  }
+
+  /** PURPOSE: Return the next action on the way to the target of the piece
+   *  of the given game.  */
+  private int follow(TetrisEngine engine) {
+    TetrisPiece piece = engine.getPiece();
+
+    if (this.pathPos < this.pathLength) {
+      int state = this.reach.getState(piece.getRotation(), piece.getRow(),
+                                      piece.getCol());
+      if (state != this.pathStates[this.pathPos]) {  // Knocked off the path
+        this.reach.enumerate(engine.getBoard(), piece);
+        this.setPath(engine.getBoard());
+      }
+      if (this.pathPos < this.pathLength) {
+        return this.pathActions[this.pathPos++];
+      }
+    }
+
+    if (piece.getRotation() != this.targetRotation) {
+      if (piece.canRotate(engine.getBoard())) return TetrisEngine.ROTATE;
+      if (piece.getRow() < TetrisSearch.START_ROWS) return NONE;  // Wait
+    }
+
+    if (piece.getCol() < this.targetCol) {
+      return TetrisEngine.RIGHT;
+    } else if (piece.getCol() > this.targetCol) {
+      return TetrisEngine.LEFT;
+    } else if (piece.getRotation() == this.targetRotation) {
+      return TetrisEngine.DROP;
+    }
+
+    return NONE;  // Wait for enough room to rotate
+  }
+
+  /** PURPOSE: Plan for a piece of the given type, rotation and center, as
+   *  plan() does, and time it.  */
+  private void decide(TetrisBoard board, int type, int rotation, int row,
+                      int col, long deadline) {
+    long start = System.nanoTime();
+    this.plan(board, type, rotation, row, col, deadline);
+    this.lastTime = System.nanoTime() - start;
+  }
+
+  /** PURPOSE: Find the placement of a piece of the given type, rotation and
+   *  center with the current strategy before the given System.nanoTime(),
+   *  keep it as the target, and record how deep the search went.  */
+  private void plan(TetrisBoard board, int type, int rotation, int row,
+                    int col, long deadline) {
+    int depth;
+    boolean hit;
+    this.reach.enumerate(board, type, rotation, row, col);
+
+    if (this.book != null) {
+      int placement = this.book.get(board, type);
+      if (placement != TetrisSearch.NONE &&
+          this.reach.find(board, placement) >= 0) {
+        this.setTarget(board, rotation, col, placement);
+        this.bookMoves++;
+        return;
+      }
+    }
+
+    if (this.strategy != SEARCH) this.getTable();  // Forget old weights
+    if (this.strategy == BEAM) {
+      this.setTarget(board, rotation, col,
+                     this.beam.search(board, this.reach, this.types,
+                                      this.types.length, deadline));
+      depth = this.beam.getReached();
+      hit = this.beam.isTimedOut();
+    } else if (this.strategy == MCTS) {
+      TetrisMCTS mcts = this.getMCTS();
+      this.setTarget(board, rotation, col,
+                     mcts.search(board, row, this.types, this.types.length,
+                                 deadline));
+      depth = mcts.getReached();
+      hit = mcts.isTimedOut();
+    } else {
+      this.setTarget(board, rotation, col,
+                     this.search.search(board, this.reach, deadline));
+      depth = this.search.getReached();
+      hit = this.search.isTimedOut();
+    }
+
+    this.decisions++;
+    if (hit) this.deadlineHits++;
+    this.depths[Math.min(depth, MAX_DEPTH)]++;
+    this.lastDepth = depth;
+  }
+
+  /** PURPOSE: Find the best rotation and column to drop the given piece in,
+   *  and keep it as the target for subsequent moves.  Return its score.  */
+  public double search(TetrisBoard board, TetrisPiece piece) {
+    this.finish();
+    this.reach.enumerate(board, piece);
+    this.setTarget(board, piece.getRotation(), piece.getCol(),
+                   this.search.search(board, piece.getType(),
+                                      piece.getRow()));
+    return this.search.getValue();
+  }
+
+  /** PURPOSE: Steer the piece, now at the given rotation and column, to a
+   *  placement from now on.  */
+  private void setTarget(TetrisBoard board, int rotation, int col,
+                         int placement) {
+    this.target = placement;
+    if (placement == TetrisSearch.NONE) {  // Nowhere to go, so just drop
+      this.targetRotation = rotation;
+      this.targetCol = col;
+    } else {
+      this.targetRotation = TetrisSearch.getRotation(placement);
+      this.targetCol = TetrisSearch.getCol(placement);
+    }
+    this.setPath(board);
+  }
+
+  /** PURPOSE: Find the shortest path to the target among the placements
+   *  last enumerated, or none if it cannot be reached.  */
+  private void setPath(TetrisBoard board) {
+    this.pathLength = 0;
+    this.pathPos = 0;
+    if (this.target == TetrisSearch.NONE) return;
+
+    int index = this.reach.find(board, this.target);
+    if (index < 0) return;
+
+    int length = this.reach.getPathLength(index);
+    if (length > this.pathActions.length) {  // Room for the longest path
+      int most = Math.max(length, (TetrisPiece.ROTATIONS * board.getHeight() *
+                                   board.getWidth()) + 1);
+      this.pathActions = new int[most];
+      this.pathStates = new int[most];
+    }
+    this.pathLength = this.reach.getPath(index, this.pathActions,
+                                         this.pathStates);
+  }
+
+  /** PURPOSE: Return the number of placements decided since the last
+   *  reset.  */
+  public long getDecisions() {
+    return this.decisions;
+  }
+
+  /** PURPOSE: Return the number of decisions cut short by their deadline. */
+  public long getDeadlineHits() {
+    return this.deadlineHits;
+  }
+
+  /** PURPOSE: Return the number of decisions that reached the given depth,
+   *  counting deeper ones as MAX_DEPTH.  */
+  public long getDepthCount(int depth) {
+    return this.depths[Math.min(depth, MAX_DEPTH)];
+  }
+
+  /** PURPOSE: Return the depth reached by the last decision. */
+  public int getLastDepth() {
+    return this.lastDepth;
+  }
+
+  /** PURPOSE: Return the duration of the last decision, in ns. */
+  public long getLastTime() {
+    return this.lastTime;
+  }
+
+  /** PURPOSE: Return the number of placements taken from the book. */
+  public long getBookMoves() {
+    return this.bookMoves;
+  }
+
+  /** PURPOSE: Reset the decision statistics. */
+  public void resetStats() {
+    this.bookMoves = 0;
+    this.decisions = 0;
+    this.deadlineHits = 0;
+    Arrays.fill(this.depths, 0);
+    this.lastDepth = 0;
+    this.lastTime = 0;
+  }
+
+  /** PURPOSE: Return the strategy used to place each piece. */
+  public int getStrategy() {
+    return this.strategy;
+  }
+
+  /** PURPOSE: Set the strategy used to place each piece. */
+  public void setStrategy(int strategy) {
+    this.strategy = strategy;
+  }
+
+  /** PURPOSE: Return the tree search used with the MCTS strategy. */
+  public TetrisMCTS getMCTS() {
+    if (this.mcts == null) {
+      this.mcts = new TetrisMCTS(this.beam.getWeights(),
+                                 TetrisMCTS.DEFAULT_ROLLOUTS,
+                                 TetrisMCTS.DEFAULT_NODES);
+      this.mcts.setTable(this.table);  // Same weights, see setWeights()
+    }
+    return this.mcts;
+  }
+
+  /** PURPOSE: Return the transposition table shared by the searches,
+   *  cleared first if the weights changed since it was filled.  */
+  public TetrisTable getTable() {
+    if (this.stale) {
+      this.table.clear();
+      this.stale = false;
+    }
+    return this.table;
+  }
+
+  /** PURPOSE: Return the opening book, or null if there is none. */
+  public TetrisBook getBook() {
+    return this.book;
+  }
+
+  /** PURPOSE: Set the opening book consulted before searching, or null to
+   *  always search.  */
+  public void setBook(TetrisBook book) {
+    this.book = book;
+  }
+
+  /** PURPOSE: Return the beam search used with the BEAM strategy. */
+  public TetrisBeam getBeam() {
+    return this.beam;
+  }
+
+  /** PURPOSE: Return the search used to place each piece.  Its weights are
+   *  set with setWeights(), so every strategy uses the same ones.  */
+  public TetrisSearch getSearch() {
+    return this.search;
+  }
+
+  /** PURPOSE: Return the weights of the evaluation features. */
+  public double[] getWeights() {
+    return this.search.getWeights();
+  }
+
+  /** PURPOSE: Set the weights of the evaluation features of every strategy.
+   *  If they changed, the evaluations cached with the old ones are
+   *  forgotten, but only once a strategy that reads the table plans, so
+   *  SEARCH can change weights as often as it likes for free.  */
+  public void setWeights(double[] weights) {
+    this.finish();
+    boolean same = Arrays.equals(weights, this.beam.getWeights());
+
+    this.search.setWeights(weights);
+    this.beam.setWeights(weights);
+    if (this.mcts != null) this.mcts.setWeights(weights);
+    if (!same) this.stale = true;
+  }
+
+/*** Nested classes ***/
+
+  /** PURPOSE: Plans for a piece on the fork/join pool, on a copy of the
+   *  board it entered.  */
+  private static class Planner extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private TetrisAI ai;
+    private TetrisBoard board;  // Board the piece entered
+    private int type;  // The piece, as it entered
+    private int rotation;
+    private int row;
+    private int col;
+    private long deadline;
+
+    private Planner(TetrisAI ai) {
+      this.ai = ai;
+    }
+
+    /** PURPOSE: Start planning for the piece of the given game. */
+    private void start(TetrisEngine engine, long deadline) {
+      TetrisBoard b = engine.getBoard();
+      TetrisPiece piece = engine.getPiece();
+      if (this.board == null || this.board.getHeight() != b.getHeight() ||
+          this.board.getWidth() != b.getWidth()) {
+        this.board = new TetrisBoard(b.getHeight(), b.getWidth());
+      }
+      this.board.copyFrom(b);
+      this.type = piece.getType();
+      this.rotation = piece.getRotation();
+      this.row = piece.getRow();
+      this.col = piece.getCol();
+      this.deadline = deadline;
+
+      this.reinitialize();
+      ForkJoinPool.commonPool().execute(this);
+    }
+
+    protected void compute() {
+      this.ai.decide(this.board, this.type, this.rotation, this.row,
+                     this.col, this.deadline);
+    }
+
+  }
 
 }
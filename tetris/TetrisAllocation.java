@@ -0,0 +1,180 @@
+package tetris;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  PURPOSE: This class defines a check that the game allocates nothing once
+ *  it is warmed up, so the garbage collector never has to pause it.
+ *
+ *  NOTES: The check drives a TetrisGame with no window through the same
+ *  methods its own threads use: each step takes the commands waiting,
+ *  advances the game, lets the AI poll for its moves and publishes a
+ *  snapshot, exactly as the game thread does, and the snapshot is then
+ *  drawn on an offscreen image, exactly as the display thread draws its
+ *  back buffer.  The AI plans on the fork/join pool as it does in the
+ *  game, with every strategy in turn, and a lost game starts over.  Only
+ *  the timing is different: the steps follow each other as fast as they
+ *  can, rather than TICK_RATE times a second, but each waits for the AI to
+ *  finish planning, so that it plays as it would in a real game.
+ *
+ *  After a warm up, the bytes allocated over a number of steps are read
+ *  from the ThreadMXBean of the JVM, for the calling thread and every other
+ *  thread, so the pool threads planning count too.  A round in which a
+ *  thread was started does not count, since what that thread allocated
+ *  cannot be told apart.  The JIT can still recompile a method it guessed
+ *  wrong about during the first rounds, which may allocate a few hundred
+ *  bytes once, so each strategy is measured for up to ROUNDS rounds and
+ *  passes as soon as a whole round allocates nothing.  On a machine with
+ *  several cores, a deep SEARCH is split across the pool, and the pool may
+ *  allocate a few bytes for a thread that has to wait for another's task;
+ *  those are counted like any others.
+ *
+ *  Run it after building, see README.md, as
+ *  java -cp classes tetris.TetrisAllocation [steps [warmup]]
+ *  It prints the bytes allocated by each strategy, and exits with status 0
+ *  if none of them allocated, or 1 otherwise, so a script can run it.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisAllocation {
+
+  // Shared, fixed values
+  public static final int DEFAULT_WARMUP = 20000;  // Steps before measuring
+  public static final int DEFAULT_STEPS = 10000;  // Steps per round
+  public static final int ROUNDS = 5;  // Rounds measured at most
+
+  // Fixed values
+  private static final long WAIT = 100000;  // Between looks at the AI (ns)
+
+  // Changeable values
+  private TetrisGame game;  // The game being played
+  private BufferedImage image;  // Where the game is drawn
+  private Graphics graphics;
+  private com.sun.management.ThreadMXBean bean;  // Allocation counters
+  private long games;  // Games started since the check was created
+  private boolean started;  // Whether a thread started in the last round
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new check of a game watched with the AI playing
+   *  the given strategy.  */
+  public TetrisAllocation(int strategy) {
+    this.game = new TetrisGame(TetrisGame.DEFAULT_ROWS,
+                               TetrisGame.DEFAULT_COLS,
+                               TetrisGame.DEFAULT_LEVEL,
+                               TetrisGame.DEFAULT_GRID);
+    this.game.getAI().setStrategy(strategy);
+    this.game.getEngine().setSeed(486);
+    this.game.resetGame(false);
+    this.image = new BufferedImage(TetrisGame.DEFAULT_WIDTH,
+                                   TetrisGame.DEFAULT_HEIGHT,
+                                   BufferedImage.TYPE_INT_RGB);
+    this.graphics = this.image.getGraphics();
+    this.bean = (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Take one step of the game, start over if it was lost, and
+   *  draw it.  The step waits for the AI to finish planning first, as if
+   *  the plan took no time in the game.  */
+  public void step() {
+    while (this.game.getAI().isPlanning()) {
+      LockSupport.parkNanos(this, WAIT);
+    }
+    this.game.advance();
+    if (this.game.getEngine().isOver()) {
+      this.game.resetGame(false);
+      this.games++;
+    }
+    this.game.display(this.graphics, this.image.getWidth(),
+                      this.image.getHeight());
+  }
+
+  /** PURPOSE: Take the given number of steps and return the number of bytes
+   *  every thread allocated meanwhile.  The other threads are read before
+   *  the calling thread starts counting and after it stops, so they are
+   *  counted over the whole round, but not what reading them allocates.  */
+  public long measure(int steps) {
+    long self = Thread.currentThread().getId();
+    long[] ids = this.bean.getAllThreadIds();
+    long[] before = new long[ids.length];
+    long threads = this.bean.getTotalStartedThreadCount();
+    for (int num = 0; num < ids.length; num++) {
+      if (ids[num] != self) {
+        before[num] = this.bean.getThreadAllocatedBytes(ids[num]);
+      }
+    }
+
+    long start = this.bean.getThreadAllocatedBytes(self);
+    long overhead = this.bean.getThreadAllocatedBytes(self) - start;
+    start = this.bean.getThreadAllocatedBytes(self);
+    for (int num = 0; num < steps; num++) {
+      this.step();
+    }
+    long bytes = this.bean.getThreadAllocatedBytes(self) - start - overhead;
+
+    for (int num = 0; num < ids.length; num++) {
+      if (ids[num] != self && before[num] >= 0) {
+        long after = this.bean.getThreadAllocatedBytes(ids[num]);
+        if (after >= 0) bytes += after - before[num];  // Unless it ended
+      }
+    }
+    this.started = this.bean.getTotalStartedThreadCount() != threads;
+    return bytes;
+  }
+
+  /** PURPOSE: Return whether a thread was started during the last round,
+   *  which then does not count.  */
+  public boolean isStarted() {
+    return this.started;
+  }
+
+  /** PURPOSE: Return the number of games started over since the check was
+   *  created.  */
+  public long getGames() {
+    return this.games;
+  }
+
+  /** PURPOSE: Check each strategy, and exit with status 1 if any of them
+   *  allocated.  The optional arguments are the number of steps to measure
+   *  and to warm up with.  */
+  public static void main(String[] args) {
+    int steps = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_STEPS;
+    int warmup = (args.length > 1) ? Integer.parseInt(args[1]) :
+                                     DEFAULT_WARMUP;
+    int[] strategies = { TetrisAI.SEARCH, TetrisAI.BEAM, TetrisAI.MCTS };
+    String[] names = { "SEARCH", "BEAM", "MCTS" };
+    boolean failed = false;
+
+    for (int num = 0; num < strategies.length; num++) {
+      TetrisAllocation check = new TetrisAllocation(strategies[num]);
+      check.measure(warmup);
+      long bytes = 0;
+      int round = 0;
+      do {
+        bytes = check.measure(steps);
+        round++;
+      } while ((bytes > 0 || check.isStarted()) && round < ROUNDS);
+
+      boolean passed = (bytes <= 0 && !check.isStarted());
+      System.out.println(names[num] + ": " + bytes + " bytes in " + steps +
+                         " steps, round " + round + " (" + check.getGames() +
+                         " games)" + (check.isStarted() ?
+                                      ", threads started" : ""));
+      if (!passed) failed = true;
+    }
+
+    if (failed) {
+      System.out.println("FAILED: the game allocates once warmed up");
+      System.exit(1);
+    }
+    System.out.println("PASSED");
+  }
+
+}
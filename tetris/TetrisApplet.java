@@ -35,11 +35,6 @@ public class TetrisApplet extends Applet {
     this.game.start();
   }
   
-  /** PURPOSE: Update. */
-  public void update(Graphics g) {
-    this.game.update(g);
-  }
-
   /** PURPOSE: Paint. */
   public void paint(Graphics g) {
     int width = this.getWidth();
@@ -47,8 +42,6 @@ public class TetrisApplet extends Applet {
     if (width < TetrisGame.DEFAULT_WIDTH) width = TetrisGame.DEFAULT_WIDTH;
     if (height < TetrisGame.DEFAULT_HEIGHT) height = TetrisGame.DEFAULT_HEIGHT;
     this.setSize(width, height);
-  
-    if (this.game != null) this.game.paint(g);
   }
 
   /** PURPOSE: Stop. */
@@ -0,0 +1,380 @@
+package tetris;
+
+/**
+ *  PURPOSE: This class defines a beam search, which places the current piece
+ *  and the pieces in the preview one after the other.
+ *
+ *  NOTES: At each level of the search, every board in the beam is expanded
+ *  by every placement of the next piece, and only the best boards are kept
+ *  for the level after.  Different orders of moves often lead to the very
+ *  same board, so boards are merged by their Zobrist hash before they are
+ *  kept, and their evaluation is cached in a transposition table across
+ *  searches.  Without both, the work would grow exponentially with depth.
+ *  Every array is allocated up front, so a search does not allocate.
+ *
+ *  Each level of the beam is a complete answer on its own, so the search
+ *  can stop at a deadline: a level that runs out of time is dropped, and the
+ *  best board of the level before decides the placement.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisBeam {
+
+  // Shared, fixed values
+  public static final int DEFAULT_WIDTH = 16;  // Boards kept per level
+  public static final int DEFAULT_DEPTH = TetrisEngine.PREVIEW + 1;
+
+  // Fixed values
+  private static final int PLACEMENTS =
+    TetrisPiece.ROTATIONS * TetrisGame.MAX_COLS;
+  private static final int STATES =  // Most lock positions TetrisReach finds
+    TetrisPiece.ROTATIONS * TetrisGame.MAX_ROWS * TetrisGame.MAX_COLS;
+
+  // Changeable values
+  private double[] weights;  // Weight of each feature in the evaluation
+  private int width;  // Number of boards kept per level
+  private int depth;  // Number of pieces placed per search
+  private TetrisTable table;  // Cached evaluations, keyed by board hash
+
+  private TetrisBoard[] beam;  // Boards kept at the current level
+  private int[] beamRoot;  // Placement of the first piece leading to each
+  private int[] beamLines;  // Lines cleared on the way to each
+  private double[] beamValue;  // Evaluation of each
+  private int beamSize;
+  private TetrisBoard[] next;  // Boards being kept for the next level
+
+  private double[] heapValue;  // Best candidates of a level, as a min-heap
+  private int[] heapParent;  // Beam board the candidate was expanded from
+  private int[] heapMove;  // Placement leading to the candidate
+  private int[] heapLines;
+  private int[] heapRoot;
+  private int heapSize;
+  private int heapType;  // Type of the piece placed at this level
+
+  private long[] seen;  // Hashes of the candidates seen at this level
+  private int[] seenLevel;  // Search level each entry belongs to
+  private int level;  // Increases with every level of every search
+
+  private TetrisBoard scratch;  // Board used to simulate placements
+  private int[] heights;
+  private double bestValue;  // Score of the last placement found
+  private long deadline;  // System.nanoTime() to stop at, 0 if none
+  private int reached;  // Levels completed by the last search
+  private boolean expired;  // Whether the deadline cut the last search short
+  private TetrisReach reach;  // Placements of the first piece, if given
+  private long merged;  // Candidates dropped as duplicates
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new beam search. */
+  public TetrisBeam(double[] weights, int width, int depth,
+                    TetrisTable table) {
+    this.weights = new double[TetrisSearch.FEATURES];
+    System.arraycopy(weights, 0, this.weights, 0, TetrisSearch.FEATURES);
+    this.width = Math.max(1, width);
+    this.depth = Math.max(1, depth);
+    this.table = table;
+
+    this.beamRoot = new int[this.width];
+    this.beamLines = new int[this.width];
+    this.beamValue = new double[this.width];
+    this.heapValue = new double[this.width];
+    this.heapParent = new int[this.width];
+    this.heapMove = new int[this.width];
+    this.heapLines = new int[this.width];
+    this.heapRoot = new int[this.width];
+
+    int size = Integer.highestOneBit(Math.max(this.width * PLACEMENTS,
+                                              STATES)) << 2;
+    this.seen = new long[size];
+    this.seenLevel = new int[size];
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisBeam() {
+    this(TetrisSearch.DEFAULT_WEIGHTS, DEFAULT_WIDTH, DEFAULT_DEPTH,
+         new TetrisTable());
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Return the best placement of the first piece in types, given
+   *  that the following count - 1 pieces are the rest of types, or NONE if
+   *  it fits nowhere.  The first piece starts from the given row.  */
+  public int search(TetrisBoard board, int row, int[] types, int count) {
+    return this.search(board, row, types, count, 0);
+  }
+
+  /** PURPOSE: Return the best placement, as search() does, but stop adding
+   *  levels at the given System.nanoTime(), or never if it is 0.  The first
+   *  level is always completed.  */
+  public int search(TetrisBoard board, int row, int[] types, int count,
+                    long deadline) {
+    this.reach = null;
+    return this.run(board, row, types, count, deadline);
+  }
+
+  /** PURPOSE: Return the best placement, as search() does with a deadline,
+   *  but place the first piece at the lock positions found by the given
+   *  enumerator, which include those a straight drop cannot reach.
+   *
+   *  @require (1) reach.getType() == types[0]  */
+  public int search(TetrisBoard board, TetrisReach reach, int[] types,
+                    int count, long deadline) {
+    this.reach = reach;
+    return this.run(board, 0, types, count, deadline);
+  }
+
+  /** PURPOSE: Run the search from the given board. */
+  private int run(TetrisBoard board, int row, int[] types, int count,
+                  long deadline) {
+    this.prepare(board);
+    this.beam[0].copyFrom(board);
+    this.beamRoot[0] = TetrisSearch.NONE;
+    this.beamLines[0] = 0;
+    this.beamSize = 1;
+    this.bestValue = Double.NEGATIVE_INFINITY;
+    this.reached = 0;
+    this.expired = false;
+
+    int levels = Math.min(this.depth, count);
+    for (int num = 0; num < levels; num++) {
+      this.deadline = (num > 0) ? deadline : 0;
+      if (!this.expand(types[num], (num == 0) ? row : 0, num == 0)) {
+        this.expired = true;
+        break;
+      }
+      if (this.heapSize == 0) break;  // Nothing fits, keep the last level
+      this.keep();
+      this.reached++;
+    }
+
+    int best = TetrisSearch.NONE;
+    for (int b = 0; b < this.beamSize; b++) {
+      if (this.beamRoot[b] != TetrisSearch.NONE &&
+          (best == TetrisSearch.NONE || this.beamValue[b] > this.bestValue)) {
+        best = this.beamRoot[b];
+        this.bestValue = this.beamValue[b];
+      }
+    }
+
+    return best;
+  }
+
+  /** PURPOSE: Expand every board in the beam by every placement of a piece
+   *  of the given type, keeping the best distinct results in the heap.
+   *  Return false if the deadline passed before every board was expanded.  */
+  private boolean expand(int type, int row, boolean root) {
+    this.heapSize = 0;
+    this.heapType = type;
+    this.level++;
+
+    for (int b = 0; b < this.beamSize; b++) {
+      if (this.deadline != 0 && System.nanoTime() - this.deadline >= 0) {
+        return false;
+      }
+      TetrisBoard parent = this.beam[b];
+
+      if (root && this.reach != null) {
+        for (int index = 0; index < this.reach.getCount(); index++) {
+          int placement = this.reach.getPlacement(index);
+          this.consider(b, type, TetrisSearch.getRotation(placement),
+                        TetrisSearch.getRow(placement),
+                        TetrisSearch.getCol(placement), placement);
+        }
+        continue;
+      }
+
+      for (int rot = 0; rot < TetrisPiece.ROTATIONS; rot++) {
+        for (int col = 0; col < parent.getWidth(); col++) {
+          int start = TetrisSearch.getStartRow(parent, type, rot, row, col);
+          if (start < 0) continue;
+
+          int origin = root ? TetrisSearch.encode(rot, start, col) :
+                              this.beamRoot[b];
+          this.consider(b, type, rot, start, col, origin);
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /** PURPOSE: Drop a piece on a copy of a beam board, and offer the result
+   *  to the heap unless it ends the game or was already seen.  */
+  private void consider(int b, int type, int rot, int start, int col,
+                        int origin) {
+    this.scratch.copyFrom(this.beam[b]);
+    int drop = TetrisPiece.getDropRow(this.scratch, type, rot, start, col);
+    TetrisPiece.place(this.scratch, type, rot, drop, col);
+    int lines = this.beamLines[b] + this.scratch.clearLines();
+
+    if (this.scratch.isFull()) return;  // This would end the game
+    long hash = this.scratch.getHash();
+    if (!this.markSeen(hash)) return;  // Reached by another path
+
+    double value = this.evaluate(hash) +
+                   (this.weights[TetrisSearch.LINES] * lines);
+    this.offer(value, b, TetrisSearch.encode(rot, drop, col), lines, origin);
+  }
+
+  /** PURPOSE: Replace the beam by the boards in the heap, rebuilding each
+   *  from its parent and placement.  */
+  private void keep() {
+    for (int num = 0; num < this.heapSize; num++) {
+      int move = this.heapMove[num];
+      TetrisBoard board = this.next[num];
+
+      board.copyFrom(this.beam[this.heapParent[num]]);
+      TetrisPiece.place(board, this.heapType, TetrisSearch.getRotation(move),
+                        TetrisSearch.getRow(move), TetrisSearch.getCol(move));
+      board.clearLines();
+      this.beamLines[num] = this.heapLines[num];
+      this.beamValue[num] = this.heapValue[num];
+    }
+
+    System.arraycopy(this.heapRoot, 0, this.beamRoot, 0, this.heapSize);
+    TetrisBoard[] temp = this.beam;
+    this.beam = this.next;
+    this.next = temp;
+    this.beamSize = this.heapSize;
+  }
+
+  /** PURPOSE: Return the evaluation of the scratch board without the lines
+   *  it cleared, from the table if it was scored before.  */
+  private double evaluate(long hash) {
+    double value = this.table.get(hash);
+    if (value != value) {  // NaN, so not in the table
+      value = TetrisSearch.evaluate(this.weights, this.scratch, 0,
+                                    this.heights);
+      this.table.put(hash, value);
+    }
+    return value;
+  }
+
+  /** PURPOSE: Record a hash as seen at the current level.  Return false if
+   *  it had already been seen.  */
+  private boolean markSeen(long hash) {
+    int mask = this.seen.length - 1;
+    int slot = (int)(hash ^ (hash >>> 32)) & mask;
+
+    while (this.seenLevel[slot] == this.level) {
+      if (this.seen[slot] == hash) {
+        this.merged++;
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    this.seen[slot] = hash;
+    this.seenLevel[slot] = this.level;
+    return true;
+  }
+
+  /** PURPOSE: Offer a candidate to the heap, which holds the best width
+   *  candidates with the worst of them on top.  */
+  private void offer(double value, int parent, int move, int lines,
+                     int root) {
+    int pos;
+    if (this.heapSize < this.width) {
+      pos = this.heapSize;
+      this.heapSize++;
+      while (pos > 0 && this.heapValue[(pos - 1) / 2] > value) {  // Sift up
+        this.copyEntry((pos - 1) / 2, pos);
+        pos = (pos - 1) / 2;
+      }
+    } else if (value > this.heapValue[0]) {
+      pos = 0;
+      while (true) {  // Sift down from the replaced top
+        int child = (pos * 2) + 1;
+        if (child >= this.heapSize) break;
+        if (child + 1 < this.heapSize &&
+            this.heapValue[child + 1] < this.heapValue[child]) child++;
+        if (this.heapValue[child] >= value) break;
+        this.copyEntry(child, pos);
+        pos = child;
+      }
+    } else {
+      return;
+    }
+
+    this.heapValue[pos] = value;
+    this.heapParent[pos] = parent;
+    this.heapMove[pos] = move;
+    this.heapLines[pos] = lines;
+    this.heapRoot[pos] = root;
+  }
+
+  /** PURPOSE: Copy a heap entry from one position to another. */
+  private void copyEntry(int from, int to) {
+    this.heapValue[to] = this.heapValue[from];
+    this.heapParent[to] = this.heapParent[from];
+    this.heapMove[to] = this.heapMove[from];
+    this.heapLines[to] = this.heapLines[from];
+    this.heapRoot[to] = this.heapRoot[from];
+  }
+
+  /** PURPOSE: Make sure the boards match the size of the board. */
+  private void prepare(TetrisBoard board) {
+    if (this.scratch == null ||
+        this.scratch.getHeight() != board.getHeight() ||
+        this.scratch.getWidth() != board.getWidth()) {
+      int rows = board.getHeight();
+      int cols = board.getWidth();
+
+      this.beam = new TetrisBoard[this.width];
+      this.next = new TetrisBoard[this.width];
+      for (int num = 0; num < this.width; num++) {
+        this.beam[num] = new TetrisBoard(rows, cols);
+        this.next[num] = new TetrisBoard(rows, cols);
+      }
+      this.scratch = new TetrisBoard(rows, cols);
+      this.heights = new int[cols];
+    }
+  }
+
+  /** PURPOSE: Return the score of the last placement found. */
+  public double getValue() {
+    return this.bestValue;
+  }
+
+  /** PURPOSE: Return the number of pieces placed per search. */
+  public int getDepth() {
+    return this.depth;
+  }
+
+  /** PURPOSE: Return the number of levels completed by the last search. */
+  public int getReached() {
+    return this.reached;
+  }
+
+  /** PURPOSE: Return whether the last search with a deadline ran out of
+   *  time before reaching its full depth.  */
+  public boolean isTimedOut() {
+    return this.expired;
+  }
+
+  /** PURPOSE: Return the weights of the evaluation features. */
+  public double[] getWeights() {
+    return this.weights;
+  }
+
+  /** PURPOSE: Set the weights of the evaluation features.  The table keeps
+   *  the evaluations made with the old ones until it is cleared.  */
+  public void setWeights(double[] weights) {
+    System.arraycopy(weights, 0, this.weights, 0, TetrisSearch.FEATURES);
+  }
+
+  /** PURPOSE: Return the transposition table of the search. */
+  public TetrisTable getTable() {
+    return this.table;
+  }
+
+  /** PURPOSE: Return the number of candidates merged with an identical
+   *  board reached by another order of moves.  */
+  public long getMerged() {
+    return this.merged;
+  }
+
+}
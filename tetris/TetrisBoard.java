@@ -1,13 +1,9 @@
 package tetris;
 
-import java.awt.geom.*;
 import java.awt.Color;
-import java.awt.Font;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.Rectangle;
 import java.lang.Math;
-import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.Set;
 import java.util.HashSet;
 
@@ -19,26 +15,80 @@ import java.util.HashSet;
 
 public class TetrisBoard {
 
-  // Fixed values
-  private static final int margin = 20;  // Borders of the window
-  private static final int innerMargin = 5;  // Borders of tables
-  private static final int textMargin = 15;  // Borders around text
-  private static final int sectionMargin = 25;  // Section breaks
+  // Zobrist keys of each cell, for hashing the inactive cells of a board
+  private static final long[][] KEYS = 
+    new long[TetrisGame.MAX_ROWS][TetrisGame.MAX_COLS];
+
+  // Zobrist keys of each number of rows and cols, for the size of a board
+  private static final long[] ROW_KEYS = new long[TetrisGame.MAX_ROWS + 1];
+  private static final long[] COL_KEYS = new long[TetrisGame.MAX_COLS + 1];
+
+  static {
+    Random rand = new Random(486);  // The same keys on every run
+    for (int r = 0; r < TetrisGame.MAX_ROWS; r++) {
+      for (int c = 0; c < TetrisGame.MAX_COLS; c++) {
+        KEYS[r][c] = rand.nextLong();
+      }
+    }
+    for (int r = 0; r <= TetrisGame.MAX_ROWS; r++) {
+      ROW_KEYS[r] = rand.nextLong();
+    }
+    for (int c = 0; c <= TetrisGame.MAX_COLS; c++) {
+      COL_KEYS[c] = rand.nextLong();
+    }
+  }
 
   // Changeable values
+  private int[] filled;  // Bitmask of inactive cells in each row
+  private int[] active;  // Bitmask of active cells in each row
+  private int full;  // Bitmask of a completed row
+  private long hash;  // Zobrist hash of the inactive cells
+  private long empty;  // Hash of the board with no inactive cells
+  private int[] heights;  // Height of the top inactive cell of each column
+  private int holes;  // Empty cells below the top of their column
+  private int lines;  // Completed rows
+  private int[] dirty;  // Bitmask of cells changed since shown, each row
+  private boolean redraw;  // Whether to show the whole board again
+  private Color[][] colors;  // Color of each cell (rows, cols)
   private TetrisCell[][] board;  // Array of cells in the board (rows, cols)
   private boolean grid;  // Whether to display a grid
 
 /*** CONSTRUCTOR(s) ***/
 
-  /** PURPOSE: Initialize a new board of the specified size and appearance. */
+  /** PURPOSE: Initialize a new board of the specified size and appearance.
+   * 
+   *  NOTES: The occupancy of each row is kept as a bitmask, with bit c
+   *  standing for column c.  This works because MAX_COLS fits in an int, and
+   *  it turns line checks and collision tests into single comparisons.  The
+   *  cells are only views onto these masks, kept for the display.  The
+   *  height of each column, the holes and the completed rows are kept up to
+   *  date cell by cell as cells fill and empty, and recounted when rows
+   *  shift, so asking for them never scans the board.  The colors are kept
+   *  as one array per row, so clearing lines only reorders the rows in a
+   *  single pass and blanks the cleared ones, recycled at the top.  Every
+   *  cell whose mark or color changes is also flagged as dirty in a mask per
+   *  row, so a display that already shows the board only has to draw the
+   *  dirty cells again, see TetrisView.
+   * 
+   *  @require (1) rows <= TetrisGame.MAX_ROWS
+   *           (2) cols <= TetrisGame.MAX_COLS  */
   public TetrisBoard(int rows, int cols, boolean grid) {
+    this.filled = new int[rows];
+    this.active = new int[rows];
+    this.full = (cols < 32) ? (1 << cols) - 1 : -1;
+    this.empty = ROW_KEYS[rows] ^ COL_KEYS[cols];
+    this.hash = this.empty;
+    this.heights = new int[cols];
+    this.dirty = new int[rows];
+    this.redraw = true;
+    this.colors = new Color[rows][cols];
     this.board = new TetrisCell[rows][cols];
     this.grid = grid;
 
     for (int r = 0; r < rows; r++) {
+      Arrays.fill(this.colors[r], TetrisCell.COLOR_EMPTY);
       for (int c = 0; c < cols; c++) {
-        this.board[r][c] = new TetrisCell(r, c);  // Initialize the cells
+        this.board[r][c] = new TetrisCell(this, r, c);  // Initialize the cells
       }
     }
   }
@@ -55,183 +105,265 @@ public class TetrisBoard {
 
 /*** CUSTOM Methods ***/
 
-  /** PURPOSE: Display the board on the specified window. */
-  public void displayOn(Graphics g, int width, int height) {
-    displayOn(g, width, height, 0, 0, 0);
+  /** PURPOSE: Return whether the whole board has to be displayed again,
+   *  because it was cleared or created since clearDirty() was last
+   *  called.  */
+  public boolean isRedrawNeeded() {
+    return this.redraw;
   }
-  
-  /** PURPOSE: Display the board on the specified window. */
-  public void displayOn(Graphics g, int width, int height, 
-                        int lines, int score, int level) {
-    Graphics2D window = (Graphics2D)g;
-    Color origColor = window.getColor();
 
-    int rows = this.board.length;
-    int cols = this.board[0].length;
+  /** PURPOSE: Return the bitmask of cells in the given row changed since
+   *  clearDirty() was last called.  */
+  public int getDirtyMask(int row) {
+    return this.dirty[row];
+  }
 
-    int minStretch = 135;  // Minimum width of the right side
-    height -= margin;
+  /** PURPOSE: Forget the changes, once they are displayed or copied. */
+  public void clearDirty() {
+    Arrays.fill(this.dirty, 0);
+    this.redraw = false;
+  }
 
-    // Size of a square cell in relation to the window
-    int cell = (width - (margin * 3) - minStretch - 2) / cols;
-    if (rows >= cols) {  // Use horizontal size computation by default
-      if (height - (margin * 2) - 2 < (cell * rows)) {  // Too tight
-        cell = (height - (margin * 2)) / rows;  // Use vertical size
-      }
+  /** PURPOSE: Return whether the board is displayed with a grid. */
+  public boolean isGrid() {
+    return this.grid;
+  }
+
+  /** PURPOSE: Return the cell at the specified location. */
+  public TetrisCell getCell(int row, int col) {
+    return this.board[row][col];
+  }
+
+  /** PURPOSE: Set the status indicator of the given cell.
+   *
+   *  @require (1) the change has been confirmed to be valid  */
+  public void setCell(int row, int col, int mark) {
+    this.setMark(row, col, mark);
+  }
+
+  /** PURPOSE: Return the status indicator of the given cell. */
+  public int getMark(int row, int col) {
+    int bit = 1 << col;
+    if ((this.filled[row] & bit) != 0) return TetrisCell.INACTIVE;
+    if ((this.active[row] & bit) != 0) return TetrisCell.ACTIVE;
+    return TetrisCell.EMPTY;
+  }
+
+  /** PURPOSE: Set the status indicator of the given cell.  Return the
+   *  previous status indicator.  */
+  public int setMark(int row, int col, int mark) {
+    int temp = this.getMark(row, col);
+    int bit = 1 << col;
+
+    this.active[row] &= ~bit;
+    this.dirty[row] |= bit;
+    if (mark == TetrisCell.INACTIVE) {
+      this.fillRow(row, bit);
+    } else {
+      this.emptyRow(row, bit);
+      if (mark == TetrisCell.ACTIVE) this.active[row] |= bit;
     }
 
-    /* LEFT SIDE */
+    return temp;
+  }
 
-    // Playing field
-    window.setColor(Color.BLACK);
-    Rectangle well = new Rectangle(margin, margin * 2, (cell * cols) + 2, 
-                                   (cell * rows) + 2);
-    window.fill(well);
-    window.draw(well);
+  /** PURPOSE: Return the color of the given cell. */
+  public Color getColor(int row, int col) {
+    return this.colors[row][col];
+  }
 
-    // Cells
-    window.setColor(TetrisCell.COLOR_EMPTY);
-    for (int r = 0; r < rows; r++) {
-      for (int c = 0; c < cols; c++) {
-      this.board[r][c].setRectangle(new Rectangle(margin + (cell * c) + 1, 
-                                    (margin * 2) + (cell * r) + 1, 
-                                    cell, cell));
-        this.board[r][c].displayOn(g);
+  /** PURPOSE: Set the color of the given cell. */
+  public void setColor(int row, int col, Color color) {
+    this.colors[row][col] = color;
+    this.dirty[row] |= 1 << col;
+  }
+
+  /** PURPOSE: Return whether the given cell is occupied by an inactive
+   *  piece.  */
+  public boolean isFilled(int row, int col) {
+    return (this.filled[row] & (1 << col)) != 0;
+  }
+
+  /** PURPOSE: Return the bitmask of inactive cells in the given row. */
+  public int getRowMask(int row) {
+    return this.filled[row];
+  }
+
+  /** PURPOSE: Return the number of inactive cells in the given row. */
+  public int getRowCount(int row) {
+    return Integer.bitCount(this.filled[row]);
+  }
+
+  /** PURPOSE: Return the height of the given column, counted from the
+   *  bottom of the board up to its top inactive cell, or 0 if it is
+   *  empty.  */
+  public int getColumnHeight(int col) {
+    return this.heights[col];
+  }
+
+  /** PURPOSE: Return the number of empty cells with an inactive cell above
+   *  them in the same column.  */
+  public int getHoles() {
+    return this.holes;
+  }
+
+  /** PURPOSE: Return the number of completed rows on the board. */
+  public int getLineCount() {
+    return this.lines;
+  }
+
+  /** PURPOSE: Mark the cells of the given bitmask in a row as inactive. */
+  public void fillRow(int row, int mask) {
+    int added = mask & ~this.filled[row];
+    if (added == 0) return;
+
+    if (this.filled[row] == this.full) this.lines--;
+    this.filled[row] |= added;
+    this.dirty[row] |= added;
+    if (this.filled[row] == this.full) this.lines++;
+    this.hash ^= this.getHash(row, added);
+
+    int height = this.filled.length - row;
+    while (added != 0) {
+      int c = Integer.numberOfTrailingZeros(added);
+      if (height > this.heights[c]) {  // A new top, over any empty cells
+        this.holes += height - this.heights[c] - 1;
+        this.heights[c] = height;
+      } else {  // Filling a hole
+        this.holes--;
       }
+      added &= added - 1;
     }
+  }
 
-    // Grid
-    Color gridColor = (this.grid) ? Color.GRAY : TetrisCell.COLOR_EMPTY;
-    window.setColor(gridColor);
+  /** PURPOSE: Mark the cells of the given bitmask in a row as empty. */
+  public void emptyRow(int row, int mask) {
+    int removed = mask & this.filled[row];
+    if (removed == 0) return;
+
+    if (this.filled[row] == this.full) this.lines--;
+    this.filled[row] &= ~removed;
+    this.dirty[row] |= removed;
+    this.hash ^= this.getHash(row, removed);
+
+    int rows = this.filled.length;
+    int height = rows - row;
+    while (removed != 0) {
+      int c = Integer.numberOfTrailingZeros(removed);
+      int bit = 1 << c;
+      if (height == this.heights[c]) {  // The top, so find the next one
+        int r = row + 1;
+        while (r < rows && (this.filled[r] & bit) == 0) {
+          r++;
+        }
+        this.holes -= r - row - 1;  // The empty cells above it are no holes
+        this.heights[c] = rows - r;
+      } else {  // Making a hole
+        this.holes++;
+      }
+      removed &= removed - 1;
+    }
+  }
+
+  /** PURPOSE: Return the Zobrist hash of the inactive cells of the board.
+   *  Boards of the same size with the same inactive cells have the same
+   *  hash, however the cells came to be filled.  The size is part of the
+   *  hash, since a cell in a given row is at a different height on a board
+   *  with more rows.  */
+  public long getHash() {
+    return this.hash;
+  }
 
-    for (int r = 0; r <= rows; r++) {
-      window.draw(new Line2D.Double(margin + 1, (margin * 2) + (cell * r) + 1, 
-                                    margin + (int)well.getWidth() - 1, 
-                                    (margin * 2) + (cell * r) + 1));
+  /** PURPOSE: Return the hash of the given cells in a row. */
+  private long getHash(int row, int mask) {
+    long h = 0;
+    while (mask != 0) {
+      h ^= KEYS[row][Integer.numberOfTrailingZeros(mask)];
+      mask &= mask - 1;
     }
-    for (int c = 0; c <= cols; c++) {
-      window.draw(new Line2D.Double(margin + (cell * c) + 1, (margin * 2) + 1, 
-                                    margin + (cell * c) + 1, 
-                                    (margin * 2) + (int)well.getHeight() - 1));
+    return h;
+  }
+
+  /** PURPOSE: Recount the heights, holes and completed rows of the board
+   *  after rows have shifted.  */
+  private void recount() {
+    int rows = this.filled.length;
+    int seen = 0;  // Columns with an inactive cell above the current row
+    this.holes = 0;
+    this.lines = 0;
+    Arrays.fill(this.heights, 0);
+
+    for (int r = 0; r < rows; r++) {
+      int mask = this.filled[r];
+      int added = mask & ~seen;
+
+      this.holes += Integer.bitCount(seen & ~mask);
+      if (mask == this.full) this.lines++;
+      while (added != 0) {
+        this.heights[Integer.numberOfTrailingZeros(added)] = rows - r;
+        added &= added - 1;
+      }
+      seen |= mask;
     }
+  }
 
-    /* RIGHT SIDE */
-
-    int x = (margin * 2) + (int)well.getWidth();  // Horizontal offset
-    int y = (margin * 3);  // Vertical offset
-    int stretch = Math.abs(width - (margin * 3) - (int)well.getWidth());
-
-    // Headers
-    window.setColor(Color.BLACK);
-    window.setFont(new Font("Times", Font.BOLD, 14));
-    window.drawString("UW TETRIS", x, y);
-    y += sectionMargin;
-    window.setFont(new Font("Times", Font.PLAIN, 12));
-    window.drawString("Brenn Berliner", x, y);
-    y += textMargin;
-    window.drawString("ARCH 486, Spring 2009", x, y);
-
-    // Game status
-    y += sectionMargin;
-    Rectangle status = new Rectangle(x, y, stretch, 
-                                     (innerMargin * 2) + (textMargin * 3));
-    window.draw(status);
-    int tableX = (int)status.getX();
-    int tableY = (int)status.getY() + 13;
-    window.drawString("LINES: ", tableX + innerMargin, tableY + innerMargin);
-    window.drawString("SCORE: ", tableX + innerMargin, 
-                      tableY + innerMargin + textMargin);
-    window.drawString("LEVEL: ", tableX + innerMargin, 
-                      tableY + innerMargin + (textMargin * 2));
-    window.setColor(Color.RED);
-    window.drawString("" + lines, tableX + innerMargin + 55, 
-                      tableY + innerMargin);
-    window.setColor(Color.BLUE);
-    window.drawString("" + NumberFormat.getIntegerInstance().format(score), 
-                      tableX + innerMargin + 55, 
-                      tableY + innerMargin + textMargin);
-    window.setColor(Color.GREEN);
-    window.drawString("" + level, tableX + innerMargin + 55, 
-                      tableY + innerMargin + (textMargin * 2));
-
-    // Game commands
-    y += sectionMargin + status.getHeight();
-    window.setColor(Color.BLACK);
-    Rectangle commands = new Rectangle(x, y, stretch, 
-                                       (innerMargin * 2) + (textMargin * 4));
-    window.draw(commands);
-    tableX = (int)commands.getX();
-    tableY = (int)commands.getY() + 13;
-    window.drawString("1:  Play Game", tableX + innerMargin, 
-                      tableY + innerMargin);
-    window.drawString("2:  Watch Game", tableX + innerMargin, 
-                      tableY + innerMargin + textMargin);
-    window.draw(new Line2D.Double(tableX, 
-                tableY - 13 + (innerMargin * 3) + (textMargin * 2), 
-                tableX + stretch, 
-                tableY - 13 + (innerMargin * 3) + (textMargin * 2)));
-    window.drawString("3:  Pause", tableX + innerMargin, 
-                      tableY + innerMargin + (textMargin * 3));
-
-    // Game controls
-    y += sectionMargin + commands.getHeight();
-    Rectangle controls = new Rectangle(x, y, stretch, 
-                                       (innerMargin * 2) + (textMargin * 6));
-    window.draw(controls);
-    tableX = (int)controls.getX();
-    tableY = (int)controls.getY() + 13;
-    window.drawString('\u25c4' + "  or  G:  Left", tableX + innerMargin, 
-                      tableY + innerMargin);
-    window.drawString('\u25ba' + "  or  J:  Right", tableX + innerMargin, 
-                      tableY + innerMargin + textMargin);
-    window.drawString('\u25b2' + "  or  H:  Rotate", tableX + innerMargin, 
-                      tableY + innerMargin + (textMargin * 2));
-    window.drawString("B:  Down", tableX + innerMargin, 
-                      tableY + innerMargin + (textMargin * 3));
-    window.draw(new Line2D.Double(tableX, 
-                tableY - 13 + (innerMargin * 3) + (textMargin * 4), 
-                tableX + stretch, 
-                tableY - 13 + (innerMargin * 3) + (textMargin * 4)));
-    window.drawString('\u25bc' + "  or  Space:  Drop", tableX + innerMargin, 
-                      tableY + innerMargin + (textMargin * 5));
-
-    // Dimensions
-    y += sectionMargin + controls.getHeight();
-    Rectangle dimensions = new Rectangle(x, y, stretch, 
-                                         (innerMargin * 2) + textMargin);
-    window.draw(dimensions);
-    tableX = (int)dimensions.getX();
-    tableY = (int)dimensions.getY() + 13;
-    window.drawString(rows + " Rows x " + cols + " Cols", 
-                      tableX + innerMargin, tableY + innerMargin);
-    
-    // Game over
-    if (this.isFull()) {
-      y += sectionMargin + dimensions.getHeight();
-      Rectangle over = new Rectangle(x, y, stretch, 
-                                     (innerMargin * 2) + textMargin);
-      window.draw(over);
-      tableX = (int)over.getX();
-      tableY = (int)over.getY() + 13;
-      window.setColor(Color.RED);
-      window.setFont(new Font("Times", Font.BOLD, 14));
-      window.drawString("GAME OVER!", tableX + innerMargin, 
-                        tableY + innerMargin);
+  /** PURPOSE: Recompute the hash of the board after rows have shifted. */
+  private void rehash() {
+    long h = this.empty;
+    for (int r = 0; r < this.filled.length; r++) {
+      if (this.filled[r] != 0) h ^= this.getHash(r, this.filled[r]);
     }
-    
-    window.setColor(origColor);
+    this.hash = h;
   }
-  
-  /** PURPOSE: Return the cell at the specified location. */
-  public TetrisCell getCell(int row, int col) {
-    return this.board[row][col];
+
+  /** PURPOSE: Copy the inactive cells of another board onto this one, so it
+   *  can be used as a scratch board without allocating.  Colors and the
+   *  active piece are not copied.  Every cell is left dirty.
+   * 
+   *  @require (1) the boards are the same size  */
+  public void copyFrom(TetrisBoard other) {
+    this.copyCells(other);
+    Arrays.fill(this.active, 0);
+    Arrays.fill(this.dirty, this.full);
   }
 
-  /** PURPOSE: Set the status indicator of the given cell.
+  /** PURPOSE: Copy the inactive cells of another board, and what is kept
+   *  up to date about them.  */
+  private void copyCells(TetrisBoard other) {
+    System.arraycopy(other.filled, 0, this.filled, 0, this.filled.length);
+    this.hash = other.hash;
+    System.arraycopy(other.heights, 0, this.heights, 0, this.heights.length);
+    this.holes = other.holes;
+    this.lines = other.lines;
+  }
+
+  /** PURPOSE: Copy every cell of another board onto this one, the active
+   *  piece and colors included, and whether it shows a grid, so the copy can
+   *  be displayed while the other one keeps changing.  The dirty cells are
+   *  copied too.
    *
-   *  @require (1) the change has been confirmed to be valid  */
-  public void setCell(int row, int col, int mark) {
-    this.board[row][col].setMark(mark);
+   *  @require (1) the boards are the same size  */
+  public void copyAllFrom(TetrisBoard other) {
+    this.copyCells(other);
+    System.arraycopy(other.active, 0, this.active, 0, this.active.length);
+    System.arraycopy(other.dirty, 0, this.dirty, 0, this.dirty.length);
+    for (int r = 0; r < this.colors.length; r++) {
+      System.arraycopy(other.colors[r], 0, this.colors[r], 0,
+                       this.colors[r].length);
+    }
+    this.redraw = other.redraw || this.grid != other.grid;
+    this.grid = other.grid;
+  }
+
+  /** PURPOSE: Flag the cells dirty on another board as dirty on this one
+   *  too, and whether it has to be displayed again in full.
+   *
+   *  @require (1) the boards are the same size  */
+  public void addChanges(TetrisBoard other) {
+    for (int r = 0; r < this.dirty.length; r++) {
+      this.dirty[r] |= other.dirty[r];
+    }
+    this.redraw |= other.redraw;
   }
 
   /** PURPOSE: Return a set of the cells meeting the specified criteria. */
@@ -242,7 +374,7 @@ public class TetrisBoard {
 
     for (int r = 0; r < rows; r++) {
       for (int c = 0; c < cols; c++) {
-        if (this.board[r][c].getMark() == mark) {
+        if (this.getMark(r, c) == mark) {
           h.add(this.board[r][c]);
         }
       }
@@ -261,25 +393,16 @@ public class TetrisBoard {
     return this.board[0].length;
   }
 
-  /** PURPOSE: Return an array of the completed lines existing on the board. */
+  /** PURPOSE: Return an array of the completed lines existing on the board,
+   *  from the bottom up, as long as the number of lines found.  */
   public int[] getLines() {
     int rows = this.board.length;
-    int cols = this.board[0].length;
 
     int found = 0;
-    int[] lines = new int[TetrisPiece.SIZE];
-
-    for (int r = rows - 1; r >= 0; r--) {
-      boolean empty = false;
-
-      for (int c = 0; c < cols; c++) {
-        if (this.board[r][c].getMark() != TetrisCell.INACTIVE) {
-          empty = true;
-          break;
-        }
-      }
+    int[] lines = new int[this.lines];
 
-      if (!empty) {
+    for (int r = rows - 1; r >= 0 && found < lines.length; r--) {
+      if (this.filled[r] == this.full) {
         lines[found] = r;
         found++;
       }
@@ -289,22 +412,56 @@ public class TetrisBoard {
   }
 
   /** PURPOSE: Remove a completed line from the board and drop the remaining
-   *  pieces by one row.
-   * 
-   *  @require (1) this.displayOn method has been called  */
+   *  pieces by one row.  */
   public void clearLine(int clear) {
-    int rows = this.board.length;
-    int cols = this.board[0].length;
+    // Shift the masks down a row, and recycle the cleared row of colors
+    System.arraycopy(this.filled, 0, this.filled, 1, clear);
+    System.arraycopy(this.active, 0, this.active, 1, clear);
+    this.filled[0] = 0;
+    this.active[0] = 0;
+    Arrays.fill(this.dirty, 0, clear + 1, this.full);
+    this.rehash();
+    this.recount();
+
+    Color[] recycled = this.colors[clear];
+    System.arraycopy(this.colors, 0, this.colors, 1, clear);
+    Arrays.fill(recycled, TetrisCell.COLOR_EMPTY);
+    this.colors[0] = recycled;
+  }
 
-    for (int r = clear; r > 0; r--) {
-      for (int c = 0; c < cols; c++) {
-        if (this.board[r][c].getMark() == TetrisCell.INACTIVE || 
-            this.board[r-1][c].getMark() == TetrisCell.INACTIVE) {
-          this.board[r][c].setMark(this.board[r-1][c].getMark());
-          this.board[r][c].setColor(this.board[r-1][c].getColor());
+  /** PURPOSE: Remove every completed line from the board in a single pass,
+   *  dropping the remaining rows down.  Return the number of lines removed.
+   * 
+   *  @require (1) there is no active piece on the board  */
+  public int clearLines() {
+    if (this.lines == 0) return 0;
+    int dest = this.filled.length - 1;
+
+    for (int src = dest; src >= 0; src--) {
+      if (this.filled[src] != this.full) {
+        if (dest != src) {
+          this.filled[dest] = this.filled[src];
+          this.dirty[dest] = this.full;
+          Color[] temp = this.colors[dest];
+          this.colors[dest] = this.colors[src];
+          this.colors[src] = temp;
         }
+        dest--;
       }
     }
+
+    int cleared = dest + 1;
+    for (; dest >= 0; dest--) {  // Recycle the cleared rows at the top
+      this.filled[dest] = 0;
+      this.dirty[dest] = this.full;
+      Arrays.fill(this.colors[dest], TetrisCell.COLOR_EMPTY);
+    }
+
+    if (cleared > 0) {
+      this.rehash();
+      this.recount();
+    }
+    return cleared;
   }
 
   /** PURPOSE: Return a boolean indicating whether the well is too full to
@@ -312,32 +469,26 @@ public class TetrisBoard {
   public boolean isFull() {
     int left = (this.getWidth() - TetrisPiece.SIZE) / 2;
     int right = this.getWidth() - left;
-    boolean full = false;
-
-    for (int r = 0; r < 2; r++) {
-      for (int c = left; c < right; c++) {
-        if (this.board[r][c].getMark() == TetrisCell.INACTIVE) {
-          full = true;
-          break;
-        }
-      }
-    }
+    int spawn = this.full & ~((1 << left) - 1) & ((1 << right) - 1);
 
-    return full;
+    return ((this.filled[0] | this.filled[1]) & spawn) != 0;
   }
 
-  /** PURPOSE: Reset the board to the state it was in following initialization.
-   * 
-   *  @require (1) this.displayOn method has been called  */
+  /** PURPOSE: Reset the board to the state it was in following
+   *  initialization.  */
   public void clear() {
     int rows = this.board.length;
-    int cols = this.board[0].length;    
 
+    Arrays.fill(this.filled, 0);
+    Arrays.fill(this.active, 0);
+    this.hash = this.empty;
+    Arrays.fill(this.heights, 0);
+    this.holes = 0;
+    this.lines = 0;
+    Arrays.fill(this.dirty, this.full);
+    this.redraw = true;
     for (int r = 0; r < rows; r++) {
-      for (int c = 0; c < cols; c++) {
-        this.board[r][c].setMark(TetrisCell.EMPTY);
-        this.board[r][c].setColor(TetrisCell.COLOR_EMPTY);
-      }
+      Arrays.fill(this.colors[r], TetrisCell.COLOR_EMPTY);
     }
   }
 
@@ -0,0 +1,227 @@
+package tetris;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *  PURPOSE: This class defines an opening book, the placements chosen by a
+ *  deep search for the first pieces of a game, computed once and stored in
+ *  a file.
+ *
+ *  NOTES: Each entry maps a key, made of the Zobrist hash of a board and the
+ *  type of the piece about to enter it, to the placement of that piece.  The
+ *  file is a short header followed by the entries as fixed size records,
+ *  sorted by key:
+ *
+ *    header:  MAGIC, VERSION, rows, cols, entries  (ints)
+ *    record:  key (long), placement (int), unused (int)
+ *
+ *  The file is memory-mapped when the book is opened, and a lookup is a
+ *  binary search reading the mapping in place, so opening reads nothing but
+ *  the header and looking up allocates nothing.  The book only holds the
+ *  boards its builder reached by following the book from an empty board,
+ *  with every sequence of a few pieces; anything else misses, and the AI
+ *  searches as usual.  The main() method builds a book.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisBook {
+
+  // Shared, fixed values
+  public static final String DEFAULT_FILE = "tetris.book";
+  public static final int DEFAULT_PLIES = 4;  // Pieces covered by the book
+  public static final int DEFAULT_DEPTH = 2;  // Depth of the builder search
+
+  // Fixed values
+  private static final int MAGIC = 0x54425331;  // "TBK1"
+  private static final int VERSION = 2;  // Boards hashed with their size
+  private static final int HEADER = 20;  // Bytes before the first record
+  private static final int RECORD = 16;  // Bytes per record
+  private static final long TYPE_KEY = 0x9E3779B97F4A7C15L;  // Key mixing
+
+  // Changeable values
+  private MappedByteBuffer buffer;  // The mapped file
+  private int rows;  // Size of the board the book was built for
+  private int cols;
+  private int entries;
+
+  private long hits;  // Statistics since the book was opened
+  private long misses;
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Open the book stored in the given file. */
+  public TetrisBook(String path) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                channel.size());
+    } finally {
+      file.close();  // The mapping stays valid
+    }
+
+    if (this.buffer.capacity() < HEADER || this.buffer.getInt(0) != MAGIC ||
+        this.buffer.getInt(4) != VERSION) {
+      throw new IOException(path + " is not an opening book");
+    }
+    this.rows = this.buffer.getInt(8);
+    this.cols = this.buffer.getInt(12);
+    this.entries = this.buffer.getInt(16);
+    if (HEADER + ((long)this.entries * RECORD) > this.buffer.capacity()) {
+      throw new IOException(path + " is truncated");
+    }
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Return the book placement for a piece of the given type
+   *  entering the board, or TetrisSearch.NONE if the book has none.  */
+  public int get(TetrisBoard board, int type) {
+    if (board.getHeight() != this.rows || board.getWidth() != this.cols) {
+      this.misses++;
+      return TetrisSearch.NONE;
+    }
+
+    long key = getKey(board, type);
+    int low = 0;
+    int high = this.entries - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long found = this.buffer.getLong(HEADER + (mid * RECORD));
+      if (found < key) {
+        low = mid + 1;
+      } else if (found > key) {
+        high = mid - 1;
+      } else {
+        this.hits++;
+        return this.buffer.getInt(HEADER + (mid * RECORD) + 8);
+      }
+    }
+
+    this.misses++;
+    return TetrisSearch.NONE;
+  }
+
+  /** PURPOSE: Return the number of entries in the book. */
+  public int getEntries() {
+    return this.entries;
+  }
+
+  /** PURPOSE: Return the number of lookups that found a placement. */
+  public long getHits() {
+    return this.hits;
+  }
+
+  /** PURPOSE: Return the number of lookups that found none. */
+  public long getMisses() {
+    return this.misses;
+  }
+
+  /** PURPOSE: Return the key of a piece of the given type entering the
+   *  board.  */
+  public static long getKey(TetrisBoard board, int type) {
+    return board.getHash() ^ ((type + 1) * TYPE_KEY);
+  }
+
+  /** PURPOSE: Open the book in the given file, or return null if there is
+   *  no usable book there.  */
+  public static TetrisBook load(String path) {
+    if (!new File(path).isFile()) return null;
+    try {
+      return new TetrisBook(path);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /** PURPOSE: Build a book for a board of the given size, following the
+   *  book from an empty board for the given number of pieces, and searching
+   *  each entry to the given depth.  Write it to the given file and return
+   *  the number of entries.  */
+  public static int build(String path, int rows, int cols, int plies,
+                          int depth) throws IOException {
+    TetrisSearch search = new TetrisSearch(TetrisSearch.DEFAULT_WEIGHTS,
+                                           depth);
+    TreeMap<Long, Integer> book = new TreeMap<Long, Integer>();
+    TetrisBoard[] level = { new TetrisBoard(rows, cols) };
+    HashSet<Long> seen = new HashSet<Long>();
+
+    for (int ply = 0; ply < plies; ply++) {
+      TetrisBoard[] next = new TetrisBoard[level.length * TetrisPiece.TYPES];
+      int boards = 0;
+
+      for (int num = 0; num < level.length; num++) {
+        TetrisBoard board = level[num];
+        int col = TetrisPiece.getStartCol(board);
+
+        for (int type = 0; type < TetrisPiece.TYPES; type++) {
+          if (!TetrisPiece.fits(board, type, 0, 0, col)) continue;
+          int placement = search.search(board, type, 0);
+          if (placement == TetrisSearch.NONE) continue;
+          book.put(getKey(board, type), placement);
+          if (ply + 1 == plies) continue;  // No need for the board after
+
+          TetrisBoard after = new TetrisBoard(rows, cols);
+          after.copyFrom(board);
+          int rot = TetrisSearch.getRotation(placement);
+          int target = TetrisSearch.getCol(placement);
+          TetrisPiece.place(after, type, rot,
+                            TetrisPiece.getDropRow(after, type, rot,
+                                                   TetrisSearch.getRow(
+                                                     placement), target),
+                            target);
+          after.clearLines();
+          if (seen.add(after.getHash())) next[boards++] = after;
+        }
+      }
+
+      level = new TetrisBoard[boards];
+      System.arraycopy(next, 0, level, 0, boards);
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                                 new FileOutputStream(path)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(rows);
+      out.writeInt(cols);
+      out.writeInt(book.size());
+      for (Map.Entry<Long, Integer> entry : book.entrySet()) {
+        out.writeLong(entry.getKey());
+        out.writeInt(entry.getValue());
+        out.writeInt(0);
+      }
+    } finally {
+      out.close();
+    }
+
+    return book.size();
+  }
+
+  /** PURPOSE: Build a book for the default board.  The optional arguments
+   *  are the file, the number of pieces and the search depth.  */
+  public static void main(String[] args) throws IOException {
+    String path = (args.length > 0) ? args[0] : DEFAULT_FILE;
+    int plies = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_PLIES;
+    int depth = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_DEPTH;
+
+    long start = System.nanoTime();
+    int entries = build(path, TetrisGame.DEFAULT_ROWS, TetrisGame.DEFAULT_COLS,
+                        plies, depth);
+    System.out.println("Wrote " + entries + " entries to " + path + " in " +
+                       ((System.nanoTime() - start) / 1000000) + " ms");
+  }
+
+}
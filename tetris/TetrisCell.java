@@ -20,19 +20,19 @@ public class TetrisCell {
   public static final Color COLOR_EMPTY = Color.BLACK;  // Color of empty cells
 
   // Changeable values
+  private TetrisBoard board;  // Board holding the cell state
   private int row;  // Row number
   private int col;  // Column number
-  private int mark;  // Status indicator
   private Rectangle rect;  // Rectangle representation
-  private Color color;  // Cell color
 
 /*** CONSTRUCTOR(s) ***/
 
-  /** PURPOSE: Initialize a new cell. */
-  public TetrisCell(int row, int col) {
+  /** PURPOSE: Initialize a new cell as a view onto the given board location.
+   *  The mark and color are stored in the board itself.  */
+  public TetrisCell(TetrisBoard board, int row, int col) {
+    this.board = board;
     this.row = row;
     this.col = col;
-    this.mark = EMPTY;  // Default is empty
   }
 
 /*** CUSTOM Methods ***/
@@ -49,15 +49,13 @@ public class TetrisCell {
 
   /** PURPOSE: Return the status indicator of the cell. */
   public int getMark() {
-    return this.mark;
+    return this.board.getMark(this.row, this.col);
   }
 
   /** PURPOSE: Set the status indicator of the cell. Return the previous status
    *  indicator.  */
   public int setMark(int mark) {
-    int temp = this.mark;
-    this.mark = mark;
-    return temp;
+    return this.board.setMark(this.row, this.col, mark);
   }
 
   /** PURPOSE: Display the cell on the specified window.
@@ -67,8 +65,10 @@ public class TetrisCell {
     Graphics2D window = (Graphics2D)g;
     Color origColor = window.getColor();
     window.setColor(this.getColor());
-    window.fill(this.rect);
-    window.draw(this.rect);
+    window.fillRect(this.rect.x, this.rect.y, this.rect.width,
+                    this.rect.height);
+    window.drawRect(this.rect.x, this.rect.y, this.rect.width,
+                    this.rect.height);
     window.setColor(origColor);
   }
   
@@ -84,33 +84,40 @@ public class TetrisCell {
     this.rect = rect;
   }
 
+  /** PURPOSE: Set the bounds of the rectangle represented by the cell,
+   *  creating it the first time.  */
+  public void setBounds(int x, int y, int width, int height) {
+    if (this.rect == null) this.rect = new Rectangle(x, y, width, height);
+    else this.rect.setBounds(x, y, width, height);
+  }
+
   /** PURPOSE: Return the color of the cell.
    * 
    *  @require (1) this.rect != null  */
   public Color getColor() {
-    return this.color;
+    return this.board.getColor(this.row, this.col);
   }
 
   /** PURPOSE: Set the color of the cell.
    * 
    *  @require (1) this.rect != null  */
   public void setColor(Color color) {
-    this.color = color;
+    this.board.setColor(this.row, this.col, color);
   }
 
   /** PURPOSE: Return whether the cell is empty. */
   public boolean isEmpty() {
-    return (this.mark == EMPTY);
+    return (this.getMark() == EMPTY);
   }
 
   /** PURPOSE: Return whether the cell is active. */
   public boolean isActive() {
-    return (this.mark == ACTIVE);
+    return (this.getMark() == ACTIVE);
   }
 
   /** PURPOSE: Return whether the cell is inactive. */
   public boolean isInactive() {
-    return (this.mark == INACTIVE);
+    return (this.getMark() == INACTIVE);
   }
 
 }
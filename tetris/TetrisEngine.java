@@ -0,0 +1,323 @@
+package tetris;
+
+/**
+ *  PURPOSE: This class defines the rules of the tetris game, independent of
+ *  any window, widget or timer.
+ *
+ *  NOTES: The engine only changes state when it is told to.  A front end
+ *  such as TetrisGame calls tick() whenever gravity drops the piece and
+ *  step() for every keystroke, and redraws the board afterwards.
+ *  Simulations and the AI can drive it the same way without a display, as
+ *  fast as they like.  The types of the pieces come from a TetrisGenerator,
+ *  which can be seeded, so a game can be played again piece for piece.
+ *
+ *  The speed of the game is its gravity, in rows per second as a fixed
+ *  point number with ROW standing for one row, so fast levels keep their
+ *  fractions of a row rather than rounding to whole ms.  A front end adds
+ *  it up over time, and passes the whole rows due to fall(), which moves
+ *  the piece that far in one go, however many rows that is.  Gravity stops
+ *  growing at MAX_GRAVITY, or 20G, where a piece reaches the floor as soon
+ *  as the front end lets it fall.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisEngine {
+
+  // Shared, fixed values
+  public static final int LEFT = 0;  // Action identifiers
+  public static final int RIGHT = 1;
+  public static final int ROTATE = 2;
+  public static final int DOWN = 3;
+  public static final int DROP = 4;
+
+  public static final int PREVIEW = 3;  // Upcoming pieces known in advance
+
+  public static final int ROW = 1 << 16;  // Gravity of one row per second
+  public static final int MAX_GRAVITY = ROW * 20 * 60;  // 20 rows a frame
+
+  // Fixed values
+  private static final int LINES_BASE = 200;  // Point multiplier for lines
+  private static final int SCORE_BASE = 100;  // Point dividend for moves
+  private static final int LEVEL_BASE = 10;  // Lines per level
+  private static final int DELAY_BASE = 1000;  // Initial timer length (ms)
+  private static final int DELAY_CUT = 10;  // Less per level once playing
+
+  // Changeable values
+  private TetrisBoard board;  // The board on which the game is played
+  private TetrisPiece piece;  // The active piece on the board
+  private TetrisPiece spare;  // Recycled for every piece, once created
+  private long serial;  // Pieces added by this engine, never reset
+  private int[] queue;  // Types of the upcoming pieces, as a ring
+  private int head;  // Position of the next piece in the queue
+  private TetrisGenerator pieces;  // Chooses the type of each piece
+
+  private int lines;  // Total lines cleared
+  private int score;  // Total score obtained
+  private int level;  // Playing level within the game
+
+  private int startLevel;  // Customizable starting level
+  private int moves;  // Player keystroke count on the current piece
+  private int gravity;  // Rows per second, in ROW units
+  private boolean over;  // Whether the well is too full to continue
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new game on the given board. */
+  public TetrisEngine(TetrisBoard board, int level) {
+    this.board = board;
+    this.startLevel = level;
+    this.queue = new int[PREVIEW];
+    this.pieces = new TetrisGenerator();
+    this.reset(false);
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisEngine(int rows, int cols, int level) {
+    this(new TetrisBoard(rows, cols), level);
+  }
+
+  /** Alternate constructor #2. */
+  public TetrisEngine() {
+    this(TetrisGame.DEFAULT_ROWS, TetrisGame.DEFAULT_COLS,
+         TetrisGame.DEFAULT_LEVEL);
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Reset the game to its initial state, with a new piece at the
+   *  top of the board if requested.  */
+  public void reset(boolean start) {
+    this.board.clear();
+
+    this.lines = 0;
+    this.score = 0;
+    this.level = this.startLevel;
+
+    this.moves = 0;
+    this.gravity = (int)((long)ROW * 1000 * (this.level + 1) / DELAY_BASE);
+    this.over = false;
+
+    for (int num = 0; num < this.queue.length; num++) {
+      this.queue[num] = this.pieces.next();
+    }
+    this.head = 0;
+
+    this.piece = null;
+    if (start) this.addPiece();
+  }
+
+  /** PURPOSE: Seed the choice of pieces, so that the game reset next plays
+   *  the same pieces every time.  */
+  public void setSeed(long seed) {
+    this.pieces.setSeed(seed);
+  }
+
+  /** PURPOSE: Return the generator choosing the type of each piece. */
+  public TetrisGenerator getGenerator() {
+    return this.pieces;
+  }
+
+  /** PURPOSE: Choose the type of each piece with the given generator from
+   *  now on, such as one split off another for a game of its own.  */
+  public void setGenerator(TetrisGenerator pieces) {
+    this.pieces = pieces;
+  }
+
+  /** PURPOSE: Create a new piece on the board, taking its type from the
+   *  front of the queue and choosing a new type for the back of it.  */
+  private void addPiece() {
+    int type = this.queue[this.head];
+    this.queue[this.head] = this.pieces.next();
+    this.head = (this.head + 1) % this.queue.length;
+
+    if (this.spare == null) this.spare = new TetrisPiece(this.board, type);
+    else this.spare.reset(this.board, type);  // Choose the piece
+    this.piece = this.spare;
+    this.piece.setActive(this.board);  // Display the piece
+    this.serial++;
+  }
+
+  /** PURPOSE: Return the type of an upcoming piece, 0 being the one that
+   *  follows the active piece.
+   * 
+   *  @require (1) index < PREVIEW  */
+  public int getNext(int index) {
+    return this.queue[(this.head + index) % this.queue.length];
+  }
+
+  /** PURPOSE: Advance the game by one timer event.  Move the piece one row
+   *  down, if possible; otherwise lock it and initialize a new piece.  Return
+   *  whether the game can continue.  */
+  public boolean tick() {
+    if (this.over) return false;
+    if (this.isLanded()) return this.lock();
+
+    this.step(DOWN);  // Move down by one row automatically
+    return true;
+  }
+
+  /** PURPOSE: Apply a player action to the active piece.  Return whether the
+   *  piece moved, rotated or landed as a result.  */
+  public boolean step(int action) {
+    if (this.isLanded()) return false;
+    this.moves++;  // Moves count whether consummated or not
+
+    switch (action) {
+      case DROP:
+        int drop = TetrisPiece.getDropRow(this.board, this.piece.getType(),
+                                          this.piece.getRotation(),
+                                          this.piece.getRow(),
+                                          this.piece.getCol()) -
+                   this.piece.getRow();
+        if (drop > 0) this.piece.move(this.board, 0, drop);
+        this.piece.setInactive(this.board);
+        return true;
+      case ROTATE:
+        if (this.piece.canRotate(this.board)) {
+          this.piece.rotate(this.board);
+          return true;
+        }
+        return false;
+      case LEFT:
+      case RIGHT:
+        int col = (action == LEFT) ? -1 : 1;
+        if (this.piece.canMove(this.board, col, 0)) {
+          this.piece.move(this.board, col, 0);
+          return true;
+        }
+        return false;
+      case DOWN:
+        if (this.piece.canMove(this.board, 0, 1)) {
+          this.piece.move(this.board, 0, 1);
+        } else {
+          this.piece.setInactive(this.board);
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /** PURPOSE: Let gravity move the piece down the given number of rows in
+   *  one move, or as far as it can go, landing it if it hits something on
+   *  the way, which uses up a row of its own, just as that many steps DOWN
+   *  would.  Return the rows used up, 0 if the piece had already landed.  */
+  public int fall(int rows) {
+    if (this.isLanded() || rows <= 0) return 0;
+
+    int drop = TetrisPiece.getDropRow(this.board, this.piece.getType(),
+                                      this.piece.getRotation(),
+                                      this.piece.getRow(),
+                                      this.piece.getCol()) -
+               this.piece.getRow();
+    int used = rows;
+    if (drop >= rows) {
+      this.piece.move(this.board, 0, rows);
+    } else {
+      if (drop > 0) this.piece.move(this.board, 0, drop);
+      this.piece.setInactive(this.board);
+      used = drop + 1;
+    }
+
+    this.moves += used;  // Counted as steps DOWN would be
+    return used;
+  }
+
+  /** PURPOSE: Return the gravity of the given level, reached by clearing
+   *  lines: a row every DELAY_BASE / (level + 1) - DELAY_CUT ms, kept as a
+   *  fraction, up to MAX_GRAVITY.  */
+  private static int getGravity(int level) {
+    long cut = (long)DELAY_BASE - ((long)DELAY_CUT * (level + 1));
+    if (cut <= 0) return MAX_GRAVITY;  // No delay left at all
+    long gravity = (long)ROW * 1000 * (level + 1) / cut;  // ms in a second
+    return (int)Math.min(gravity, MAX_GRAVITY);
+  }
+
+  /** PURPOSE: Settle a landed piece: clear the completed lines, update the
+   *  lines, score, level and delay, and add a new piece unless the well is
+   *  full.  Return whether the game can continue.  */
+  public boolean lock() {
+    if (this.piece != null && !this.piece.isInactive()) {
+      this.piece.setInactive(this.board);
+    }
+
+    int updateLines = this.board.clearLines();  // Recalculate lines
+    this.lines += updateLines;
+
+    int updateScore = (this.moves > 0) ? ((this.level + 1) *
+                                          (updateLines * LINES_BASE) +
+                                          (SCORE_BASE / this.moves)) : 0;
+    this.score += updateScore;  // Recalculate score
+
+    if (this.lines >= (this.level - this.startLevel + 1) * LEVEL_BASE) {
+      this.level++;  // Recalculate level
+      this.gravity = getGravity(this.level);  // Recalculate gravity
+    }
+
+    this.moves = 0;
+
+    if (!this.board.isFull()) {
+      this.addPiece();
+    } else {
+      this.piece = null;  // Game over
+      this.over = true;
+    }
+
+    return !this.over;
+  }
+
+  /** PURPOSE: Return whether the active piece has landed and must be locked
+   *  before the game can continue.  */
+  public boolean isLanded() {
+    return (this.piece == null || this.piece.isInactive());
+  }
+
+  /** PURPOSE: Return whether the game is over. */
+  public boolean isOver() {
+    return this.over;
+  }
+
+  /** PURPOSE: Return the board on which the game is played. */
+  public TetrisBoard getBoard() {
+    return this.board;
+  }
+
+  /** PURPOSE: Return the active piece, or null between pieces. */
+  public TetrisPiece getPiece() {
+    return this.piece;
+  }
+
+  /** PURPOSE: Return a number identifying the active piece, which changes
+   *  whenever a new piece is added, since the same TetrisPiece is reused.  */
+  public long getSerial() {
+    return this.serial;
+  }
+
+  /** PURPOSE: Get the line count. */
+  public int getLines() {
+    return this.lines;
+  }
+
+  /** PURPOSE: Get the score count. */
+  public int getScore() {
+    return this.score;
+  }
+
+  /** PURPOSE: Get the level count. */
+  public int getLevel() {
+    return this.level;
+  }
+
+  /** PURPOSE: Get the delay before the piece drops one row, in ms, rounded
+   *  down but never below 1.  */
+  public int getDelay() {
+    return Math.max(1, (int)(1000L * ROW / this.gravity));
+  }
+
+  /** PURPOSE: Get the gravity, in rows per second, ROW being one row. */
+  public int getGravity() {
+    return this.gravity;
+  }
+
+}
@@ -1,20 +1,29 @@
 package tetris;
 
 import java.awt.event.*;
+import java.awt.BorderLayout;
 import java.awt.Button;
+import java.awt.Canvas;
 import java.awt.Color;
 import java.awt.Checkbox;
 import java.awt.Container;
+import java.awt.DisplayMode;
+import java.awt.EventQueue;
 import java.awt.Graphics;
-import java.awt.Image;
 import java.awt.Label;
+import java.awt.Panel;
 import java.awt.TextField;
-import java.util.Random;
-import javax.swing.Timer;
+import java.awt.image.BufferStrategy;
+import java.awt.image.VolatileImage;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  *  PURPOSE: This class defines the master controls and program flow of the
- *  tetris game, as well as registering listeners for events.
+ *  tetris game, as well as registering listeners for events.  The rules of
+ *  the game itself are kept in TetrisEngine, which this class drives from
+ *  its game loop and keyboard events.
  * 
  *  NOTES: See the static methods for command line syntax.  The game rules are
  *  all consistent with every other version of tetris known to man.  Pieces
@@ -35,6 +44,49 @@ import javax.swing.Timer;
  *  you know how to play the game of tetris.  Break both 100 and 100,000 and
  *  you might be qualified to challenge me in PC-to-PC combat. :-)
  * 
+ *  The game runs on a thread of its own, the only one that ever touches the
+ *  engine, and the AI searches on the fork/join pool, so a step never waits
+ *  for it, see aiMove().  Keystrokes, focus changes and buttons only add a
+ *  command to a TetrisInput queue on the event dispatch thread and return;
+ *  the game thread takes the commands as they come, and advances the game
+ *  in fixed steps of 1/TICK_RATE of a second, catching up on the steps due
+ *  since the last ones, so the piece falls at the same speed however busy
+ *  the machine is.  Each step adds the gravity of the game, in rows per
+ *  second, to what is owed to the piece, and the whole rows owed fall in a
+ *  single move, however many there are, so gravity faster than a row a
+ *  step stays exact on average and costs no more than a row.  At the top
+ *  levels the piece falls all the way at once.  After each batch of steps
+ *  and commands, the game is copied into a TetrisSnapshot for display.
+ *  Three snapshots take turns: the game thread fills one, the display
+ *  shows another, and the last one published waits in between, swapped in
+ *  and out atomically, so neither thread waits for the other or allocates.
+ * 
+ *  The game is drawn on a Canvas of its own, below a panel holding the
+ *  option controls, which are left to AWT.  A second thread displays the
+ *  snapshots on the canvas at the refresh rate of the screen, drawing
+ *  straight into a BufferStrategy of the canvas rather than asking for a
+ *  repaint and waiting for the event dispatch thread.  It is the only
+ *  thread that ever draws the game: the canvas paints nothing when AWT asks
+ *  it to, and the buffer strategy is created on the event dispatch thread,
+ *  as AWT expects, once the canvas is displayable, with the display thread
+ *  waiting for it until then.  The canvas is drawn into a VolatileImage
+ *  kept from frame to frame, then copied to the screen.  The image is
+ *  recreated only when the canvas changes size or the image is no longer
+ *  compatible with the screen.  Only the cells of the board that changed
+ *  since the last snapshot drawn, and the game status if it changed, are
+ *  drawn into it again, unless it was just created, its contents were lost,
+ *  or the board was cleared or resized.  getTickRate() and getFrameRate()
+ *  return the steps and frames actually achieved per second.
+ * 
+ *  Keys are looked up by key code in a table of commands, and queued with
+ *  the time they were pressed, and released.  A move is made once for each
+ *  press, whatever the keyboard repeats; left, right and down repeat by
+ *  themselves while held, after the auto shift delay and then every auto
+ *  repeat interval, timed by the steps of the game rather than by the
+ *  keyboard, see setAutoShift().  Each snapshot notes the oldest keystroke
+ *  it is the first to show, and the display records the time from that
+ *  keystroke to the frame showing it in a histogram, see getLatency().
+ * 
  *  @author Brenn Berliner, ARCH 486, Spring 2009
  *  @version 0.95 [Revised 6/8/09]
  */
@@ -55,33 +107,110 @@ public class TetrisGame implements KeyListener, FocusListener, ActionListener {
   public static final int MAX_COLS = 30;
   public static final int MAX_STARTLEVEL = 50;
 
+  public static final int DEFAULT_AUTO_SHIFT = 170;  // Delay to repeat (ms)
+  public static final int DEFAULT_AUTO_REPEAT = 50;  // Between repeats (ms)
+
   // Fixed values
-  private static final int LINES_BASE = 200;  // Point multiplier for lines
-  private static final int SCORE_BASE = 100;  // Point dividend for moves
-  private static final int LEVEL_BASE = 10;  // Lines per level
-  private static final int DELAY_BASE = 1000;  // Initial timer length (ms)
-  
-  // Changeable values
-  private TetrisBoard board;  // The board on which the game is played
-  private TetrisPiece piece;  // The active piece on the board
-  private TetrisAI ai;  // The AI opponent
+  private static final int AI_DELAY = 100;  // Gravity delay while watching
+  private static final int AI_GRAVITY = TetrisEngine.ROW * 1000 / AI_DELAY;
+  private static final int AI_MOVES = 2;  // AI actions per gravity drop
+
+  private static final int TICK_RATE = 60;  // Game steps per second
+  private static final long STEP = 1000000000L / TICK_RATE;  // In ns
+  private static final int MAX_STEPS = TICK_RATE / 4;  // Caught up at once
+  private static final long ROW_STEPS = (long)TetrisEngine.ROW * TICK_RATE;
+  private static final int FRAME_RATE = 60;  // Unless the screen says
 
-  private int lines;  // Total lines cleared
-  private int score;  // Total score obtained
-  private int level;  // Playing level within the game
+  private static final int PLAY = 8;  // Commands, after the engine actions
+  private static final int WATCH = 9;
+  private static final int PAUSE = 10;  // Pause, if not paused already
+  private static final int TOGGLE_PAUSE = 11;
+  private static final int OPTIONS = 12;  // Apply the pending options
+  private static final int RELEASED = 0x100;  // Flags a key released
 
-  private int startLevel;  // Customizable starting level
-  private int moves;  // Player keystroke count on the current piece
-  private int delay;  // Delay before dropping the piece one row 
+  private static final int[] KEYS = new int[256];  // Command of each key
+  private static final int[] SHIFTS = {  // Moves repeated while held
+    TetrisEngine.LEFT, TetrisEngine.RIGHT, TetrisEngine.DOWN
+  };
+
+  static {
+    Arrays.fill(KEYS, TetrisInput.NONE);
+    KEYS[KeyEvent.VK_1] = PLAY;
+    KEYS[KeyEvent.VK_NUMPAD1] = PLAY;
+    KEYS[KeyEvent.VK_2] = WATCH;
+    KEYS[KeyEvent.VK_NUMPAD2] = WATCH;
+    KEYS[KeyEvent.VK_3] = TOGGLE_PAUSE;
+    KEYS[KeyEvent.VK_NUMPAD3] = TOGGLE_PAUSE;
+    KEYS[KeyEvent.VK_SPACE] = TetrisEngine.DROP;
+    KEYS[KeyEvent.VK_DOWN] = TetrisEngine.DROP;
+    KEYS[KeyEvent.VK_KP_DOWN] = TetrisEngine.DROP;
+    KEYS[KeyEvent.VK_H] = TetrisEngine.ROTATE;
+    KEYS[KeyEvent.VK_UP] = TetrisEngine.ROTATE;
+    KEYS[KeyEvent.VK_KP_UP] = TetrisEngine.ROTATE;
+    KEYS[KeyEvent.VK_G] = TetrisEngine.LEFT;
+    KEYS[KeyEvent.VK_LEFT] = TetrisEngine.LEFT;
+    KEYS[KeyEvent.VK_KP_LEFT] = TetrisEngine.LEFT;
+    KEYS[KeyEvent.VK_J] = TetrisEngine.RIGHT;
+    KEYS[KeyEvent.VK_RIGHT] = TetrisEngine.RIGHT;
+    KEYS[KeyEvent.VK_KP_RIGHT] = TetrisEngine.RIGHT;
+    KEYS[KeyEvent.VK_B] = TetrisEngine.DOWN;
+  }
+
+  private static final int FRESH = 4;  // Flags a snapshot not yet displayed
+  private static final int INDEX = 3;  // Picks the snapshot out of a slot
+  
+  // Changeable values, only used by the game thread
+  private TetrisEngine engine;  // The rules of the game being played
+  private TetrisAI ai;  // The AI opponent
 
   private boolean paused;  // Whether the game is paused
-  private boolean busy;  // Whether the thread is busy completing an operation
   private boolean isHuman;  // Whether the AI is playing
-  
-  private Timer timer;  // The timer responsible for firing events
-  private Container window;  // The game area container
-  private Image buffer;  // Screen image for buffering
+  private boolean playing;  // Whether a piece is falling, or about to
+  private long owed;  // Gravity owed by the piece, ROW_STEPS for a row
+  private boolean changed;  // Whether to publish a new snapshot
+  private int back;  // Snapshot being filled
+  private long clock;  // Time played, in ns, stopped while paused
+  private int held;  // Bitmask of the actions whose keys are held
+  private int shift;  // Action repeated while held, or NONE
+  private long shiftAt;  // Time played when it repeats next, in ns
+  private boolean unshown;  // Whether input changed the game, unpublished
+  private long given;  // When the oldest of that input was given, in ns
+
+  // Changeable values, shared between threads
+  private TetrisInput input;  // Commands for the game thread
+  private volatile int[] options;  // Options waiting for OPTIONS
+  private Thread thread;  // The game thread, while started
+  private Thread display;  // The display thread, while started
+  private TetrisSnapshot[] snapshots;  // Copies of the game, see above
+  private AtomicInteger middle;  // Snapshot published last, and FRESH
+  private Rate ticks;  // Steps and frames per second, as measured
+  private Rate frames;
+  private Canvas canvas;  // Where the game is drawn
+  private volatile BufferStrategy strategy;  // Buffers of the canvas
+  private volatile boolean creating;  // Whether it is being created
+  private Runnable creator;  // Creates it on the event dispatch thread
+  private volatile long frame;  // Length of a frame of the screen, in ns
+  private volatile int autoShift;  // Delay before a held move repeats, ms
+  private volatile int autoRepeat;  // Interval between the repeats, ms
+  private TetrisHistogram latency;  // From keystrokes to frames, in ns
+
+  // Changeable values, only used by the thread displaying the game
+  private int front;  // Snapshot being displayed
+  private VolatileImage buffer;  // Screen image for buffering, kept
   private Graphics graphics;  // Graphics context of buffer
+  private TetrisView view;  // Layout, tiles and fixed text of the buffer
+  private TetrisSnapshot shown;  // What the buffer shows, see drawBuffer()
+  private int shownWidth;
+  private int shownHeight;
+  private int shownRows;
+  private int shownCols;
+  private int shownLines;
+  private int shownScore;
+  private int shownLevel;
+  private boolean shownFull;
+
+  // Changeable values, only used by the event dispatch thread
+  private Container window;  // Holds the controls and the canvas
   
   // Game option controls
   private Button update;
@@ -96,9 +225,7 @@ public class TetrisGame implements KeyListener, FocusListener, ActionListener {
   /** PURPOSE: Initialize a new tetris game. */
   public TetrisGame(Container window, int rows, int cols, 
                     int level, boolean grid) {
-    this.board = new TetrisBoard(rows, cols, grid);
-    this.startLevel = level;
-    this.ai = new TetrisAI();
+    this(rows, cols, level, grid);
 
     this.rowsField = new TextField(3);
     this.rowsField.setText(new Integer(rows).toString());
@@ -112,32 +239,42 @@ public class TetrisGame implements KeyListener, FocusListener, ActionListener {
     this.update = new Button("Update");
     this.reset = new Button("Reset");
     
-    this.window = window;
-    this.window.add(this.rowsField);
+    Panel controls = new Panel();
+    controls.setBackground(Color.WHITE);
+    controls.add(this.rowsField);
     Label rowsLabel = new Label("Rows");
     rowsLabel.setBackground(Color.WHITE);
-    this.window.add(rowsLabel);
-    this.window.add(this.colsField);
+    controls.add(rowsLabel);
+    controls.add(this.colsField);
     Label colsLabel = new Label("Cols");
     colsLabel.setBackground(Color.WHITE);
-    this.window.add(colsLabel);
-    this.window.add(this.levelField);
+    controls.add(colsLabel);
+    controls.add(this.levelField);
     Label levelLabel = new Label("Level");
     levelLabel.setBackground(Color.WHITE);
-    this.window.add(levelLabel);
-    this.window.add(this.gridField);
-    this.window.add(this.update);
-    this.window.add(this.reset);
+    controls.add(levelLabel);
+    controls.add(this.gridField);
+    controls.add(this.update);
+    controls.add(this.reset);
+
+    this.canvas = new Screen();
+    this.canvas.setBackground(Color.WHITE);
+    this.canvas.setIgnoreRepaint(true);  // Drawn by the display thread
+
+    this.window = window;
+    this.window.setLayout(new BorderLayout());
+    this.window.add(controls, BorderLayout.NORTH);
+    this.window.add(this.canvas, BorderLayout.CENTER);
     
-    this.window.addFocusListener(this);  // Prepare to track component focus
-    this.window.addKeyListener(this);  // Prepare to capture keyboard input
+    this.canvas.addFocusListener(this);  // Prepare to track component focus
+    this.canvas.addKeyListener(this);  // Prepare to capture keyboard input
     this.update.addActionListener(this);
     this.reset.addActionListener(this);
     
-    this.window.addMouseListener(new MouseAdapter() {
+    this.canvas.addMouseListener(new MouseAdapter() {
       public void mousePressed(MouseEvent e) {
-        TetrisGame.this.window.requestFocus();
-        TetrisGame.this.window.requestFocusInWindow();
+        TetrisGame.this.canvas.requestFocus();
+        TetrisGame.this.canvas.requestFocusInWindow();
       }
     });
   }
@@ -157,73 +294,204 @@ public class TetrisGame implements KeyListener, FocusListener, ActionListener {
     this(window, DEFAULT_ROWS, DEFAULT_COLS);
   }
 
+  /** PURPOSE: Initialize a new tetris game with no window, so no controls
+   *  and nothing to display on, which TetrisAllocation drives itself.  */
+  TetrisGame(int rows, int cols, int level, boolean grid) {
+    this.engine = new TetrisEngine(new TetrisBoard(rows, cols, grid), level);
+    this.ai = new TetrisAI();
+    this.ai.setStrategy(TetrisAI.BEAM);  // Plan ahead using the preview
+    this.ai.setBook(TetrisBook.load(TetrisBook.DEFAULT_FILE));  // If built
+    this.input = new TetrisInput();
+    this.ticks = new Rate();
+    this.frames = new Rate();
+    this.latency = new TetrisHistogram();
+    this.autoShift = DEFAULT_AUTO_SHIFT;
+    this.autoRepeat = DEFAULT_AUTO_REPEAT;
+    this.shift = TetrisInput.NONE;
+    this.view = new TetrisView();
+    this.frame = 1000000000L / FRAME_RATE;
+    this.creator = new Runnable() {
+      public void run() {
+        TetrisGame.this.createStrategy();
+      }
+    };
+
+    this.snapshots = new TetrisSnapshot[3];
+    for (int num = 0; num < this.snapshots.length; num++) {
+      this.snapshots[num] = new TetrisSnapshot(this.engine);
+    }
+    this.front = 0;
+    this.middle = new AtomicInteger(1);
+    this.back = 2;
+  }
+
 /*** Methods for Applet ***/
 
-  /** PURPOSE: Initialize. */
+  /** PURPOSE: Initialize.  The back buffer is created by the display
+   *  thread, once the canvas is displayable.  */
   public void init() {
-    int width = this.window.getWidth();
-    int height = this.window.getHeight();
-    if (width < DEFAULT_WIDTH) width = DEFAULT_WIDTH;
-    if (height < DEFAULT_HEIGHT) height = DEFAULT_HEIGHT;
-  
     this.window.setBackground(Color.WHITE);
-    this.buffer = this.window.createImage(width, height);
-    this.graphics = this.buffer.getGraphics();
+  }
+
+  /** PURPOSE: Create the back buffer at the size of the canvas, or at least
+   *  the default size, releasing the old one.  */
+  private void createBuffer() {
+    int width = Math.max(DEFAULT_WIDTH, this.canvas.getWidth());
+    int height = Math.max(DEFAULT_HEIGHT, this.canvas.getHeight());
+
+    this.disposeBuffer();
+    this.buffer = this.canvas.createVolatileImage(width, height);
+    if (this.buffer != null) this.graphics = this.buffer.createGraphics();
+  }
+
+  /** PURPOSE: Release the back buffer and its graphics context, if any. */
+  private void disposeBuffer() {
+    if (this.graphics != null) this.graphics.dispose();
+    if (this.buffer != null) this.buffer.flush();
+    this.graphics = null;
+    this.buffer = null;
+  }
+
+  /** PURPOSE: Make the back buffer ready to draw in, creating it again if
+   *  the canvas has resized or it cannot be restored for the screen.  Return
+   *  whether it has to be drawn in full, its contents being new or lost.  If
+   *  the canvas is not displayable yet, there is no buffer afterwards.  */
+  private boolean validateBuffer() {
+    int width = Math.max(DEFAULT_WIDTH, this.canvas.getWidth());
+    int height = Math.max(DEFAULT_HEIGHT, this.canvas.getHeight());
+    if (this.buffer == null || this.buffer.getWidth() != width ||
+        this.buffer.getHeight() != height) {
+      this.createBuffer();
+      return true;
+    }
+
+    int valid = this.buffer.validate(this.canvas.getGraphicsConfiguration());
+    if (valid == VolatileImage.IMAGE_INCOMPATIBLE) this.createBuffer();
+    return valid != VolatileImage.IMAGE_OK;
+  }
+
+  /** PURPOSE: Bring the back buffer, drawn with the given graphics, up to
+   *  date with the given snapshot for a canvas of the given size.  Only
+   *  what changed since the snapshot drawn last is drawn, which is nothing
+   *  if it is the same one, unless requested, or the canvas has resized, or
+   *  the board has to be drawn again in full.  */
+  private void drawBuffer(Graphics g, TetrisSnapshot snapshot, boolean all,
+                          int width, int height) {
+    TetrisBoard board = snapshot.getBoard();
+
+    if (all || board.isRedrawNeeded() || board.isFull() != this.shownFull ||
+        width != this.shownWidth || height != this.shownHeight ||
+        board.getHeight() != this.shownRows ||
+        board.getWidth() != this.shownCols) {
+      g.setColor(Color.WHITE);  // Clear the last frame
+      g.fillRect(0, 0, Math.max(DEFAULT_WIDTH, width),
+                 Math.max(DEFAULT_HEIGHT, height));
+      snapshot.displayOn(g, this.view, width, height);
+    } else if (snapshot != this.shown) {
+      this.view.displayChanges(g, board, width, height);
+      if (snapshot.getLines() != this.shownLines ||
+          snapshot.getScore() != this.shownScore ||
+          snapshot.getLevel() != this.shownLevel) {
+        this.view.displayStatus(g, board, width, height,
+                                snapshot.getLines(), snapshot.getScore(),
+                                snapshot.getLevel());
+      }
+    }
+
+    this.shown = snapshot;
+    this.shownWidth = width;
+    this.shownHeight = height;
+    this.shownRows = board.getHeight();
+    this.shownCols = board.getWidth();
+    this.shownLines = snapshot.getLines();
+    this.shownScore = snapshot.getScore();
+    this.shownLevel = snapshot.getLevel();
+    this.shownFull = board.isFull();
   }
   
-  /** PURPOSE: Start. */
+  /** PURPOSE: Start, and start the game and display threads if they are
+   *  not running.  */
   public void start() {
+    if (this.thread == null) {
+      this.thread = new Thread("Tetris") {
+        public void run() {
+          TetrisGame.this.runGame();
+        }
+      };
+      this.thread.setDaemon(true);
+      this.thread.start();
+    }
+    if (this.display == null) {
+      this.display = new Thread("Tetris display") {
+        public void run() {
+          TetrisGame.this.runDisplay();
+        }
+      };
+      this.display.setDaemon(true);
+      this.display.start();
+    }
+
     this.window.setVisible(true);
-    this.window.requestFocus();
-    this.window.requestFocusInWindow();
-    this.window.repaint();  // Display it in all its glory!
-  }
-  
-  /** PURPOSE: Update. */
-  public void update(Graphics g) {
-    this.window.setForeground(Color.WHITE);
-    this.init();
-    this.board.displayOn(this.graphics, this.window.getWidth(), 
-                         this.window.getHeight(), this.lines, 
-                         this.score, this.level);
-    g.drawImage(this.buffer, 0, 0, this.window);
+    this.canvas.requestFocus();
+    this.canvas.requestFocusInWindow();
   }
 
-  /** PURPOSE: Paint. */
-  public void paint(Graphics g) {
-    this.update(g);
+  /** PURPOSE: Stop, wait for the game and display threads to finish what
+   *  they are doing, and release the buffers.  */
+  public void stop() {
+    this.thread = stop(this.thread);
+    this.display = stop(this.display);
+
+    this.disposeBuffer();  // Video memory is scarce, so give it back
+    if (this.strategy != null) {
+      this.strategy.dispose();
+      this.strategy = null;
+    }
   }
 
-  /** PURPOSE: Stop. */
-  public void stop() {
-    if (this.timer != null) this.timer.stop();
+  /** PURPOSE: Interrupt the given thread, if any, wait for it to finish,
+   *  and return null.  */
+  private static Thread stop(Thread thread) {
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return null;
   }
 
 /*** Methods for KeyListener ***/
 
-  /** PURPOSE: Determine which key was pressed and act accordingly. */
+  /** PURPOSE: Determine which key was pressed and act accordingly.  Moves
+   *  are dropped by the game thread unless a human is playing.  */
   public void keyPressed(KeyEvent e) {
-    String key = ("" + e.getKeyChar()).toUpperCase();
-
-    if (key.equals("1"))      { this.resetGame(true);  }  // Play
-    else if (key.equals("2")) { this.resetGame(false); }  // Watch
-    else if (key.equals("3")) { this.togglePause();    }  // Pause
-
-    if (this.isHuman && !this.paused) {
-      if (key.equals(" ") || e.getKeyCode() == KeyEvent.VK_DOWN)
-        { this.userMove(0, 0);  }  // Drop
-      else if (key.equals("H") || e.getKeyCode() == KeyEvent.VK_UP)
-        { this.userMove(0, -1); }  // Rotate
-      else if (key.equals("G") || e.getKeyCode() == KeyEvent.VK_LEFT)
-        { this.userMove(-1, 0); }  // Left
-      else if (key.equals("J") || e.getKeyCode() == KeyEvent.VK_RIGHT)
-        { this.userMove(1, 0);  }  // Right
-      else if (key.equals("B")) { this.userMove(0, 1);   }  // Down
+    int command = getCommand(e);
+    if (command != TetrisInput.NONE) this.input.offer(command, getTime(e));
+  }
+
+  /** PURPOSE: Determine which key was released, and let go of its move. */
+  public void keyReleased(KeyEvent e) {
+    int command = getCommand(e);
+    if (command != TetrisInput.NONE && command < PLAY) {
+      this.input.offer(command | RELEASED, getTime(e));
     }
   }
 
-  /** Stub for compatibility. */
-  public void keyReleased(KeyEvent e) {}
+  /** PURPOSE: Return the command of the key of the given event, or NONE. */
+  private static int getCommand(KeyEvent e) {
+    int code = e.getKeyCode();
+    return (code >= 0 && code < KEYS.length) ? KEYS[code] : TetrisInput.NONE;
+  }
+
+  /** PURPOSE: Return when the given event happened, as System.nanoTime()
+   *  would have returned it, counting the time it waited to be handled.  */
+  private static long getTime(InputEvent e) {
+    long waited = Math.max(0, System.currentTimeMillis() - e.getWhen());
+    return System.nanoTime() - (waited * 1000000L);
+  }
 
   /** Stub for compatibility. */
   public void keyTyped(KeyEvent e) {}
@@ -232,18 +500,18 @@ public class TetrisGame implements KeyListener, FocusListener, ActionListener {
 
   /** PURPOSE: Get focus event handler. */
   public void focusGained(FocusEvent e) {
-    this.togglePause();
+    this.input.offer(TOGGLE_PAUSE);
   }
   
   /** PURPOSE: Release focus event handler. */
   public void focusLost(FocusEvent e) {
-    if (!this.paused) this.togglePause();
+    this.input.offer(PAUSE);
   }
 
 /*** Methods for ActionListener ***/
 
-  /** PURPOSE: Move the piece one row down, if possible; otherwise initialize
-   *  a new piece. */
+  /** PURPOSE: Read the options when a button is pressed, and pass them on
+   *  to the game thread.  */
   public void actionPerformed(ActionEvent e) {
     if (e.getSource().equals(this.update) || 
         e.getSource().equals(this.reset)) {
@@ -262,67 +530,12 @@ public class TetrisGame implements KeyListener, FocusListener, ActionListener {
       this.levelField.setText(new Integer(opts[2]).toString());
       this.gridField.setState((opts[3] == 1));
     
-      this.startLevel = opts[2];
-      this.board = new TetrisBoard(opts[0], opts[1], (opts[3] == 1));
-      this.resetGame(this.isHuman, false);
-      this.board.displayOn(this.graphics, this.window.getWidth(), 
-                           this.window.getHeight());
-      this.window.repaint();
-      return;
+      this.options = opts;
+      this.input.offer(OPTIONS);
+      this.canvas.requestFocus();
+      this.canvas.requestFocusInWindow();
     
     }
-  
-    if (this.piece == null || this.piece.isInactive()) {
-
-      int[] clearLines = this.board.getLines();  // Recalculate lines
-      int updateLines = 0;
-      for (int r = 0; r < clearLines.length; r++) {
-        if (clearLines[r] > 0) {
-          this.board.clearLine(clearLines[r] + updateLines);
-          updateLines++;
-        }
-      }
-      this.setLines(updateLines);
-
-      int updateScore = (this.moves > 0) ? ((this.level + 1) * 
-                                            (updateLines * LINES_BASE) + 
-                                            (SCORE_BASE / this.moves)) : 0;
-      this.setScore(updateScore);  // Recalculate score
-
-      int updateLevel = 0;
-      if (this.lines >= (this.level - this.startLevel + 1) * LEVEL_BASE) {
-        updateLevel = 1;
-      }
-      this.setLevel(updateLevel);  // Recalculate level
-
-      if (!this.isHuman) {
-        this.delay = 100;  // Commandeer the timer to run the AI for now...
-      } else {
-        if (updateLevel > 0) {
-          this.delay = DELAY_BASE / (this.level + 1);  // Recalculate delay
-          if (this.delay > 10) {  // Keep high level speeds from flattening out
-            this.delay -= 10;
-          }
-        }
-      }
-
-      this.moves = 0;
-
-      this.timer.stop();
-      if (!this.board.isFull()) this.addPiece();
-      else this.window.repaint();  // Game over
-
-    } else {
-
-      if (!this.paused && !this.busy) {
-        this.move(0, 1);  // Move down by one row automatically
-
-        if (!this.isHuman) {
-          this.aiMove();
-        }
-      }
-
-    }
   }
   
 /*** CUSTOM Methods ***/
@@ -409,89 +622,356 @@ public class TetrisGame implements KeyListener, FocusListener, ActionListener {
     return opts;
   }
   
+  /** PURPOSE: Run the game until the thread is interrupted: take every
+   *  command waiting, take the steps due, publish a snapshot if anything
+   *  changed, and wait for more commands until the next step is due.  */
+  private void runGame() {
+    long last = System.nanoTime();
+    long lag = 0;  // Time not yet simulated
+
+    while (!Thread.currentThread().isInterrupted()) {
+      this.takeCommands();
+
+      long now = System.nanoTime();
+      lag += now - last;
+      last = now;
+      if (lag > MAX_STEPS * STEP) lag = MAX_STEPS * STEP;  // After a stall
+      while (lag >= STEP) {
+        this.step();
+        this.ticks.count(now);
+        lag -= STEP;
+      }
+
+      if (this.changed) this.publish();
+      this.input.await(STEP - lag);
+    }
+  }
+
+  /** PURPOSE: Take one step of the game the way runGame() does, with every
+   *  command waiting before it and a snapshot published after it if
+   *  anything changed, whether or not the step is due.  For a game with
+   *  no game thread, such as one TetrisAllocation drives.  */
+  void advance() {
+    this.takeCommands();
+    this.step();
+    this.ticks.count(System.nanoTime());
+    if (this.changed) this.publish();
+  }
+
+  /** PURPOSE: Carry out every command waiting, noting when the oldest one
+   *  that changed the game was given.  */
+  private void takeCommands() {
+    int command;
+    while ((command = this.input.poll()) != TetrisInput.NONE) {
+      this.execute(command);
+      if (this.changed && !this.unshown) {  // Oldest input to show
+        this.unshown = true;
+        this.given = this.input.getTime();
+      }
+    }
+  }
+
+  /** PURPOSE: Advance the game by one fixed step, letting the piece fall
+   *  the whole rows owed to gravity, all the way at MAX_GRAVITY.  */
+  private void step() {
+    if (!this.playing || this.paused) return;
+
+    this.clock += STEP;
+    if (this.shift != TetrisInput.NONE && this.isHuman) this.autoShift();
+
+    int gravity = this.getGravity();
+    this.owed += gravity;
+    long rows = this.owed / ROW_STEPS;
+    if (rows == 0) return;
+    this.owed -= rows * ROW_STEPS;
+
+    if (gravity >= TetrisEngine.MAX_GRAVITY) rows = Integer.MAX_VALUE;
+    this.tick((int)Math.min(rows, Integer.MAX_VALUE));
+  }
+
+  /** PURPOSE: Carry out a command on the game thread. */
+  private void execute(int command) {
+    switch (command) {
+      case PLAY:
+      case WATCH:
+        this.resetGame(command == PLAY);
+        break;
+      case PAUSE:
+        this.paused = true;
+        this.releaseKeys();  // Released elsewhere, perhaps
+        break;
+      case TOGGLE_PAUSE:
+        this.togglePause();
+        break;
+      case OPTIONS:
+        int[] opts = this.options;
+        TetrisGenerator pieces = this.engine.getGenerator();
+        this.engine = new TetrisEngine(new TetrisBoard(opts[0], opts[1], 
+                                                       (opts[3] == 1)),
+                                       opts[2]);
+        this.engine.setGenerator(pieces);  // Same sequence, carried on
+        this.resetGame(this.isHuman, false);
+        break;
+      default:  // A key of the player, pressed or released
+        this.press(command);
+        break;
+    }
+  }
+
+  /** PURPOSE: Take a key of the player being pressed, or released if the
+   *  command is flagged RELEASED.  Its move is made once per press,
+   *  however long the key is held and whatever the keyboard repeats, but
+   *  the last one of SHIFTS pressed repeats by itself, see autoShift().  */
+  private void press(int command) {
+    int action = command & ~RELEASED;
+    int key = 1 << action;
+
+    if (command != action) {  // Released
+      this.held &= ~key;
+      if (action == this.shift) {  // Back to another one still held
+        this.shift = TetrisInput.NONE;
+        for (int num = 0; num < SHIFTS.length; num++) {
+          if ((this.held & (1 << SHIFTS[num])) != 0) {
+            this.startShift(SHIFTS[num]);
+          }
+        }
+      }
+      return;
+    }
+
+    if ((this.held & key) != 0) return;  // Repeated by the keyboard
+    this.held |= key;
+    for (int num = 0; num < SHIFTS.length; num++) {
+      if (action == SHIFTS[num]) this.startShift(action);
+    }
+    if (this.isHuman && !this.paused) this.userMove(action);
+  }
+
+  /** PURPOSE: Repeat the given move once the auto shift delay has passed. */
+  private void startShift(int action) {
+    this.shift = action;
+    this.shiftAt = this.clock + (this.autoShift * 1000000L);
+  }
+
+  /** PURPOSE: Repeat the move held, if it is due, and every auto repeat
+   *  interval since, on the time played; with no interval, as far as the
+   *  piece will go.  */
+  private void autoShift() {
+    long repeat = this.autoRepeat * 1000000L;
+    if (repeat == 0) {
+      if (this.clock - this.shiftAt < 0) return;
+      while (this.engine.step(this.shift)) {
+        this.changed = true;
+      }
+      return;
+    }
+
+    while (this.clock - this.shiftAt >= 0) {
+      if (this.engine.step(this.shift)) this.changed = true;
+      this.shiftAt += repeat;
+    }
+  }
+
+  /** PURPOSE: Forget the keys held, as if they were all released. */
+  private void releaseKeys() {
+    this.held = 0;
+    this.shift = TetrisInput.NONE;
+  }
+
+  /** PURPOSE: Move the piece the given number of rows down in one move, if
+   *  possible; otherwise lock it and initialize a new piece.  */
+  private void tick(int rows) {
+    if (this.engine.isLanded()) {
+
+      if (this.engine.tick()) this.addPiece();  // Lock and continue
+      else this.playing = false;  // Game over
+      this.changed = true;
+
+    } else {
+
+      int used = this.engine.fall(rows);  // Down automatically, all at once
+      this.changed = true;
+
+      if (!this.isHuman) {
+        this.aiMove();
+      }
+      if (used < rows) this.tick(rows - used);  // Landed, so lock it
+
+    }
+  }
+
+  /** PURPOSE: Copy the game into the back snapshot and swap it with the
+   *  middle one.  Snapshots are not changed once published, not even by
+   *  the display, so the game thread can read the changes of the middle
+   *  one while it is on display.  */
+  private void publish() {
+    TetrisSnapshot snapshot = this.snapshots[this.back];
+    snapshot.copyFrom(this.engine);
+    if (this.unshown) snapshot.addInput(this.given);
+    this.unshown = false;
+    int last = this.middle.get();
+    if ((last & FRESH) != 0) {  // Not displayed yet, and may never be
+      snapshot.addChanges(this.snapshots[last & INDEX]);
+    }
+    this.back = this.middle.getAndSet(this.back | FRESH) & INDEX;
+    this.changed = false;
+  }
+
+  /** PURPOSE: Display the game until the thread is interrupted, once per
+   *  frame of the screen, once the canvas has its buffers.  */
+  private void runDisplay() {
+    long next = System.nanoTime();
+
+    while (!Thread.currentThread().isInterrupted()) {
+      if (this.strategy != null) {
+        this.render();
+      } else if (!this.creating && this.canvas.isDisplayable()) {
+        this.creating = true;
+        EventQueue.invokeLater(this.creator);  // AWT wants it done there
+      }
+
+      next += this.frame;
+      long now = System.nanoTime();
+      if (next - now > 0) LockSupport.parkNanos(this, next - now);
+      else next = now;  // Running late, so do not try to catch up
+    }
+  }
+
+  /** PURPOSE: Create the buffers of the canvas, if it is displayable, and
+   *  read the refresh rate of its screen.  Only the event dispatch thread
+   *  may call this.  */
+  private void createStrategy() {
+    this.creating = false;
+    if (!this.canvas.isDisplayable()) return;  // Asked again once it is
+
+    this.canvas.createBufferStrategy(2);
+    DisplayMode mode = this.canvas.getGraphicsConfiguration().getDevice()
+                                  .getDisplayMode();
+    int rate = mode.getRefreshRate();
+    if (rate == DisplayMode.REFRESH_RATE_UNKNOWN) rate = FRAME_RATE;
+    this.frame = 1000000000L / rate;
+    this.strategy = this.canvas.getBufferStrategy();
+  }
+
+  /** PURPOSE: Bring the back buffer up to date with the current snapshot,
+   *  copy it into the buffers of the canvas, and show it.  */
+  private void render() {
+    TetrisSnapshot snapshot = this.getSnapshot();
+    boolean first = (snapshot != this.shown);
+
+    do {
+      boolean all = this.validateBuffer();
+      if (this.buffer == null) return;
+      this.drawBuffer(this.graphics, snapshot, all, this.canvas.getWidth(),
+                      this.canvas.getHeight());
+
+      do {
+        do {
+          Graphics g = this.strategy.getDrawGraphics();
+          try {
+            g.drawImage(this.buffer, 0, 0, null);
+          } finally {
+            g.dispose();
+          }
+        } while (this.strategy.contentsRestored());
+        this.strategy.show();
+      } while (this.strategy.contentsLost());
+    } while (this.buffer.contentsLost());
+
+    this.countFrame(snapshot, first);
+  }
+
+  /** PURPOSE: Draw the current snapshot with the given graphics, for a
+   *  canvas of the given size, the way render() draws it into the back
+   *  buffer.  For a game with no display thread, such as one
+   *  TetrisAllocation drives, with the same graphics every time.  */
+  void display(Graphics g, int width, int height) {
+    TetrisSnapshot snapshot = this.getSnapshot();
+    boolean first = (snapshot != this.shown);
+    this.drawBuffer(g, snapshot, false, width, height);
+    this.countFrame(snapshot, first);
+  }
+
+  /** PURPOSE: Count a frame just shown, and if it is the first to show the
+   *  given snapshot, the time its input took to reach the screen.  */
+  private void countFrame(TetrisSnapshot snapshot, boolean first) {
+    long now = System.nanoTime();
+    if (first && snapshot.hasInput()) {
+      this.latency.record(now - snapshot.getInput());
+    }
+    this.frames.count(now);
+  }
+
+  /** PURPOSE: Return the snapshot to display, swapping in the one published
+   *  last if it has not been displayed yet.  Only the thread displaying the
+   *  game may call this.  */
+  public TetrisSnapshot getSnapshot() {
+    if ((this.middle.get() & FRESH) != 0) {
+      this.front = this.middle.getAndSet(this.front) & INDEX;
+    }
+    return this.snapshots[this.front];
+  }
+
   /** PURPOSE: Reset the game to its initial state. */
   public void resetGame(boolean isHuman) {
     this.resetGame(isHuman, true);
   }
 
-  /** PURPOSE: Reset the game to its initial state. */
+  /** PURPOSE: Reset the game to its initial state.  Only the game thread may
+   *  call this.  */
   public void resetGame(boolean isHuman, boolean start) {
-    this.board.clear();
-
-    this.lines = 0;
-    this.score = 0;
-    this.level = this.startLevel;
-
-    this.moves = 0;
-    this.delay = DELAY_BASE / (this.level + 1);
+    this.engine.reset(start);
 
     this.paused = false;
-    this.busy = false;
     this.isHuman = isHuman;
+    this.playing = false;
+    this.changed = true;
+    this.releaseKeys();
 
-    if (this.timer != null) this.timer.stop();
     if (start) this.addPiece();
-    else this.piece = null;
-
-    this.window.requestFocus();
-    this.window.requestFocusInWindow();
   }
   
-  /** PURPOSE: Create a new piece on the board. */
+  /** PURPOSE: Start gravity over for the new piece on the board. */
   public void addPiece() {
-    this.piece = new TetrisPiece(this.board);  // Choose the piece
-    this.piece.setActive();  // Display the piece
-    this.window.repaint();
-    
-    this.timer = new Timer(this.delay, this);
-    this.timer.start();
+    this.playing = true;
+    this.owed = 0;
+    this.changed = true;
+  }
+
+  /** PURPOSE: Return the delay before the piece drops one row, in ms. */
+  public int getDelay() {
+    return (this.isHuman) ? this.engine.getDelay() : AI_DELAY;
+  }
+
+  /** PURPOSE: Return the gravity on the piece, in rows per second, ROW being
+   *  one row.  */
+  public int getGravity() {
+    return (this.isHuman) ? this.engine.getGravity() : AI_GRAVITY;
   }
   
   /** PURPOSE: Redirect a user's move. */
-  public void userMove(int col, int row) {
-    this.move(col, row);
+  public void userMove(int action) {
+    this.move(action);
   }
 
   /** PURPOSE: Redirect a computer opponent's move.  See further explanation 
-   *  in TetrisAI class.  */
+   *  in TetrisAI class.  The AI plans each new piece on the fork/join pool
+   *  while the game goes on, and only moves once the plan is done, so the
+   *  step that asks is never held up by the search.  */
   public void aiMove() {
-    Random rand = new Random();
-    int move = rand.nextInt(3);  // Just get a random move for now
+    for (int num = 0; num < AI_MOVES; num++) {
+      int action = this.ai.poll(this.engine, this.getDelay());
+      if (action < 0) break;  // Planning, or waiting for the piece to drop
 
-    if (move == 0)      { this.move(0, -1); }  // Rotate
-    else if (move == 1) { this.move(-1, 0); }  // Left
-    else if (move == 2) { this.move(1, 0);  }  // Right
-    // No point in allowing downward moves, since they will happen anyway
+      this.move(action);
+      if (action == TetrisEngine.DROP) break;
+    }
   }
 
   /** PURPOSE: Handle the logistics of moving a piece. */
-  public void move(int col, int row) {
-    this.busy = true;
-    this.moves++;  // Moves count whether consummated or not
-
-    if (col == 0 && row == 0) {  // Drop
-      while (this.piece.canMove(this.board, 0, 1)) {
-        this.piece.move(board, 0, 1);
-      }
-      this.piece.setInactive();
-
-    } else if (row < 0) {  // Rotate
-      if (this.piece.canRotate(this.board)) {
-        this.piece.rotate(this.board);
-      }
-
-    } else {  // Any other move
-      if (this.piece.canMove(this.board, col, row)) {
-        this.piece.move(this.board, col, row);
-      } else {
-        if (row > 0) {
-          this.piece.setInactive();
-        }
-      }
-    }
-
-    this.busy = false;
-    this.window.repaint();
+  public void move(int action) {
+    this.engine.step(action);
+    this.changed = true;
   }
 
   /** PURPOSE: Pause or release the game. */
@@ -501,37 +981,94 @@ public class TetrisGame implements KeyListener, FocusListener, ActionListener {
   
   /** PURPOSE: Return the board on which the game will be played. */
   public TetrisBoard getBoard() {
-    return this.board;
+    return this.engine.getBoard();
+  }
+  
+  /** PURPOSE: Return the engine running the rules of the game. */
+  public TetrisEngine getEngine() {
+    return this.engine;
+  }
+
+  /** PURPOSE: Return the AI opponent. */
+  public TetrisAI getAI() {
+    return this.ai;
   }
   
   /** PURPOSE: Get the line count. */
   public int getLines() {
-    return this.lines;
+    return this.engine.getLines();
   }
   
   /** PURPOSE: Get the score count. */
   public int getScore() {
-    return this.score;
+    return this.engine.getScore();
   }
   
   /** PURPOSE: Get the level count. */
   public int getLevel() {
-    return this.level;
+    return this.engine.getLevel();
   }
 
-  /** PURPOSE: Update the line counter. */
-  private void setLines(int add) {
-    this.lines += add;
+  /** PURPOSE: Return the game steps taken per second, as last measured. */
+  public double getTickRate() {
+    return this.ticks.get();
   }
 
-  /** PURPOSE: Update the score counter. */
-  private void setScore(int add) {
-    this.score += add;
+  /** PURPOSE: Return the frames displayed per second, as last measured. */
+  public double getFrameRate() {
+    return this.frames.get();
   }
 
-  /** PURPOSE: Update the level counter. */
-  private void setLevel(int add) {
-    this.level += add;
+  /** PURPOSE: Set how long a key is held before its move repeats, and the
+   *  interval between the repeats after that, in ms.  With no interval,
+   *  the piece moves as far as it will go once the delay has passed.  */
+  public void setAutoShift(int delay, int repeat) {
+    this.autoShift = Math.max(0, delay);
+    this.autoRepeat = Math.max(0, repeat);
+  }
+
+  /** PURPOSE: Return the histogram of the time from each keystroke to the
+   *  first frame showing it, in ns.  */
+  public TetrisHistogram getLatency() {
+    return this.latency;
+  }
+
+/*** Nested classes ***/
+
+  /** PURPOSE: The canvas the game is drawn on.  The display thread draws it
+   *  every frame, so there is nothing for AWT to paint.  */
+  private static class Screen extends Canvas {
+
+    private static final long serialVersionUID = 1L;
+
+    public void update(Graphics g) {}
+
+    public void paint(Graphics g) {}
+
+  }
+
+  /** PURPOSE: Measures how often something happens, once a second.  Only
+   *  one thread may count, but any may read the rate.  */
+  private static class Rate {
+
+    private long start;  // When the current second began, in ns
+    private int count;  // Events since then
+    private volatile double rate;  // Events per second, last measured
+
+    private void count(long now) {
+      if (this.count++ == 0) this.start = now;
+      long elapsed = now - this.start;
+      if (elapsed >= 1000000000L) {
+        this.rate = (this.count - 1) * 1e9 / elapsed;
+        this.count = 1;
+        this.start = now;
+      }
+    }
+
+    private double get() {
+      return this.rate;
+    }
+
   }
 
 }
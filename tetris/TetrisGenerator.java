@@ -0,0 +1,107 @@
+package tetris;
+
+import java.util.SplittableRandom;
+
+/**
+ *  PURPOSE: This class defines the sequence of piece types a game is played
+ *  with, chosen by one of two policies: UNIFORM, where every piece is any
+ *  type with the same odds, and BAG, where the types come in bags of one of
+ *  each, shuffled, so there are never more than 12 other pieces between
+ *  two of a type.
+ *
+ *  NOTES: The types are drawn from a SplittableRandom, so a generator given
+ *  a seed always produces the same sequence, whatever else is running.  A
+ *  simulation running games in parallel gives each game a generator of its
+ *  own, split from a seeded one: each sequence is independent of the others
+ *  and shares no state with them, yet the whole run can be repeated from
+ *  the one seed.  Nothing is allocated once the generator is created.  A
+ *  generator is used by one thread at a time.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisGenerator {
+
+  // Shared, fixed values
+  public static final int UNIFORM = 0;  // Policy identifiers
+  public static final int BAG = 1;
+
+  // Changeable values
+  private SplittableRandom rand;  // Source of every choice
+  private int policy;  // How the types are chosen
+  private int[] bag;  // Types of the current bag, the ones left first
+  private int left;  // Types left in the bag
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new generator with the given seed and policy. */
+  public TetrisGenerator(long seed, int policy) {
+    this(new SplittableRandom(seed), policy);
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisGenerator(long seed) {
+    this(seed, UNIFORM);
+  }
+
+  /** Alternate constructor #2, with a seed of its own choosing. */
+  public TetrisGenerator() {
+    this(new SplittableRandom(), UNIFORM);
+  }
+
+  /** Alternate constructor #3, drawing from the given source. */
+  private TetrisGenerator(SplittableRandom rand, int policy) {
+    this.rand = rand;
+    this.policy = policy;
+    this.bag = new int[TetrisPiece.TYPES];
+    this.left = 0;
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Return the type of the next piece. */
+  public int next() {
+    if (this.policy != BAG) return this.rand.nextInt(TetrisPiece.TYPES);
+
+    if (this.left == 0) {  // Open a new bag
+      for (int type = 0; type < this.bag.length; type++) {
+        this.bag[type] = type;
+      }
+      this.left = this.bag.length;
+    }
+
+    int pick = this.rand.nextInt(this.left);  // Shuffle as we go
+    int type = this.bag[pick];
+    this.left--;
+    this.bag[pick] = this.bag[this.left];
+    this.bag[this.left] = type;
+    return type;
+  }
+
+  /** PURPOSE: Return a new generator with the same policy, drawing from a
+   *  stream of its own split off this one, so that the two sequences are
+   *  independent, and both the same every time this one is seeded the
+   *  same.  */
+  public TetrisGenerator split() {
+    return new TetrisGenerator(this.rand.split(), this.policy);
+  }
+
+  /** PURPOSE: Start the sequence over from the given seed, with a new
+   *  bag.  */
+  public void setSeed(long seed) {
+    this.rand = new SplittableRandom(seed);
+    this.left = 0;
+  }
+
+  /** PURPOSE: Return the policy choosing the types. */
+  public int getPolicy() {
+    return this.policy;
+  }
+
+  /** PURPOSE: Set the policy choosing the types, with a new bag. */
+  public void setPolicy(int policy) {
+    this.policy = policy;
+    this.left = 0;
+  }
+
+}
@@ -0,0 +1,111 @@
+package tetris;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  PURPOSE: This class defines a histogram of durations, such as the time
+ *  from a keystroke to the first frame showing its effect.
+ *
+ *  NOTES: Durations are counted in microseconds, in buckets whose width
+ *  grows with the duration: below 2^SUB_BITS us each microsecond has a
+ *  bucket of its own, and above that each power of two is split into
+ *  2^SUB_BITS buckets, so any duration is known to within about 6%, from a
+ *  microsecond up to half an hour, in a fixed array.  Recording never
+ *  allocates or locks.  One thread records, and any thread may read the
+ *  counts at the same time, seeing each count either before or after a
+ *  recording.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisHistogram {
+
+  // Fixed values
+  private static final int SUB_BITS = 4;  // Buckets per power of two, log 2
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int MAX_BITS = 31;  // Longest duration, log 2 (us)
+  private static final int BUCKETS = SUB + ((MAX_BITS - SUB_BITS) * SUB);
+
+  // Changeable values
+  private AtomicLongArray counts;  // Durations recorded in each bucket
+  private volatile long max;  // Longest duration recorded, in ns
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new, empty histogram. */
+  public TetrisHistogram() {
+    this.counts = new AtomicLongArray(BUCKETS);
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Count a duration, in ns.  Only one thread may record. */
+  public void record(long duration) {
+    int bucket = getBucket(Math.max(0, duration) / 1000);
+    this.counts.lazySet(bucket, this.counts.get(bucket) + 1);
+    if (duration > this.max) this.max = duration;
+  }
+
+  /** PURPOSE: Return the bucket of the given duration, in us. */
+  private static int getBucket(long micros) {
+    if (micros < SUB) return (int)micros;
+
+    int bits = 63 - Long.numberOfLeadingZeros(micros);  // At least SUB_BITS
+    if (bits >= MAX_BITS) return BUCKETS - 1;
+    return SUB + ((bits - SUB_BITS) * SUB) +
+           (int)((micros >> (bits - SUB_BITS)) & (SUB - 1));
+  }
+
+  /** PURPOSE: Return the longest duration the given bucket holds, in us. */
+  private static long getLimit(int bucket) {
+    if (bucket < SUB) return bucket;
+
+    int shift = (bucket - SUB) / SUB;  // Bits below the ones kept
+    long low = (long)(SUB + ((bucket - SUB) % SUB)) << shift;
+    return low + (1L << shift) - 1;
+  }
+
+  /** PURPOSE: Return the number of durations recorded. */
+  public long getCount() {
+    long count = 0;
+    for (int num = 0; num < BUCKETS; num++) {
+      count += this.counts.get(num);
+    }
+    return count;
+  }
+
+  /** PURPOSE: Return the duration that the given share of the durations
+   *  recorded did not exceed, in ns, rounded up to the end of its bucket,
+   *  or 0 if none were recorded.
+   *
+   *  @require (1) 0 <= share <= 1  */
+  public long getPercentile(double share) {
+    long count = this.getCount();
+    if (count == 0) return 0;
+
+    long rank = Math.max(1, (long)Math.ceil(share * count));
+    long seen = 0;
+    for (int num = 0; num < BUCKETS; num++) {
+      seen += this.counts.get(num);
+      if (seen >= rank) {
+        return Math.min(getLimit(num) * 1000 + 999, this.max);
+      }
+    }
+    return this.max;  // Recorded meanwhile
+  }
+
+  /** PURPOSE: Return the longest duration recorded, in ns. */
+  public long getMax() {
+    return this.max;
+  }
+
+  /** PURPOSE: Return a summary of the durations, in ms. */
+  public String toString() {
+    return this.getCount() + " recorded, ms: " +
+           "50% " + (this.getPercentile(0.5) / 1e6) + ", " +
+           "90% " + (this.getPercentile(0.9) / 1e6) + ", " +
+           "99% " + (this.getPercentile(0.99) / 1e6) + ", " +
+           "max " + (this.getMax() / 1e6);
+  }
+
+}
@@ -0,0 +1,132 @@
+package tetris;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  PURPOSE: This class defines the queue of commands sent to the thread
+ *  running the game: keystrokes, timer events and menu choices.
+ *
+ *  NOTES: Commands are ints in a fixed ring, with one thread adding them,
+ *  the event dispatch thread, and one thread taking them, the simulation
+ *  thread.  Each side only writes its own counter, and publishes it after
+ *  touching the ring, so neither side ever locks or waits for the other,
+ *  and nothing is allocated.  A command added to a full queue is dropped.
+ *  The consumer parks while the queue is empty, and the producer wakes it
+ *  up.  The consumer announces itself before it checks the queue a last
+ *  time, and the producer publishes a command before it checks for the
+ *  consumer, both with volatile writes, so at least one of them sees the
+ *  other and no wake up is lost.  Each command carries the time it was
+ *  added, so the consumer can tell how long it took to take effect.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisInput {
+
+  // Shared, fixed values
+  public static final int NONE = -1;  // Returned when the queue is empty
+  public static final int DEFAULT_CAPACITY = 256;  // Commands
+
+  // Changeable values
+  private int[] commands;  // The ring
+  private long[] times;  // When each command was added, in ns
+  private int mask;  // Capacity - 1
+  private AtomicLong head;  // Commands taken, written by the consumer
+  private AtomicLong tail;  // Commands added, written by the producer
+  private volatile Thread consumer;  // Thread to wake up, if parked
+
+  private long dropped;  // Commands lost to a full queue
+  private long time;  // When the command taken last was added, in ns
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new queue with room for the given number of
+   *  commands, rounded up to a power of two.  */
+  public TetrisInput(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.commands = new int[size];
+    this.times = new long[size];
+    this.mask = size - 1;
+    this.head = new AtomicLong();
+    this.tail = new AtomicLong();
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisInput() {
+    this(DEFAULT_CAPACITY);
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Add a command to the queue and wake up the consumer.  Return
+   *  false if the queue was full.  Only one thread may add commands.  */
+  public boolean offer(int command) {
+    return this.offer(command, System.nanoTime());
+  }
+
+  /** PURPOSE: Add a command given at the given time, as System.nanoTime()
+   *  would have returned it then.  */
+  public boolean offer(int command, long time) {
+    long tail = this.tail.get();
+    if (tail - this.head.get() > this.mask) {
+      this.dropped++;
+      return false;
+    }
+
+    this.commands[(int)tail & this.mask] = command;
+    this.times[(int)tail & this.mask] = time;
+    this.tail.set(tail + 1);  // Publishes the command, before reading below
+
+    Thread waiting = this.consumer;
+    if (waiting != null) LockSupport.unpark(waiting);
+    return true;
+  }
+
+  /** PURPOSE: Take the oldest command from the queue, or return NONE if it
+   *  is empty.  Only one thread may take commands.  */
+  public int poll() {
+    long head = this.head.get();
+    if (head == this.tail.get()) return NONE;
+
+    int command = this.commands[(int)head & this.mask];
+    this.time = this.times[(int)head & this.mask];
+    this.head.lazySet(head + 1);  // Frees the slot
+    return command;
+  }
+
+  /** PURPOSE: Return when the command taken last was added, in ns, as
+   *  System.nanoTime() returned it.  Only the consumer may ask.  */
+  public long getTime() {
+    return this.time;
+  }
+
+  /** PURPOSE: Wait until there is a command to take, or the given number of
+   *  ns have passed, or forever if it is 0.  Only the consumer may wait.  */
+  public void await(long timeout) {
+    this.consumer = Thread.currentThread();
+    if (this.isEmpty()) {  // An offer from now on will unpark the thread
+      if (timeout > 0) LockSupport.parkNanos(this, timeout);
+      else LockSupport.park(this);
+    }
+    this.consumer = null;
+  }
+
+  /** PURPOSE: Return whether there are no commands in the queue. */
+  public boolean isEmpty() {
+    return this.head.get() == this.tail.get();
+  }
+
+  /** PURPOSE: Remove every command from the queue.  Only the consumer may
+   *  clear it.  */
+  public void clear() {
+    this.head.lazySet(this.tail.get());
+  }
+
+  /** PURPOSE: Return the number of commands dropped because the queue was
+   *  full.  */
+  public long getDropped() {
+    return this.dropped;
+  }
+
+}
@@ -0,0 +1,555 @@
+package tetris;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  PURPOSE: This class defines a Monte Carlo tree search, as an alternative
+ *  way for the AI to place the current piece.
+ *
+ *  NOTES: The tree holds the placements of the current piece and of the
+ *  pieces in the preview, one level per piece.  Each rollout walks down the
+ *  tree by UCT, expands the node it stops at, and then plays the remaining
+ *  known pieces and a few more of random type, either at random or
+ *  greedily, before scoring the board it ends up with.  The score is added
+ *  to every node on the way.
+ *
+ *  Rollouts run on several threads at once, one worker for each thread of
+ *  a fork/join pool, the common pool unless another is given, so a search
+ *  holds no threads of its own.  The tree lives in arrays that are
+ *  allocated up front: visit counts and score totals are atomic, a node is
+ *  expanded by whichever thread first claims it with a compare-and-set, and
+ *  a node counts as visited as soon as a thread walks through it (a virtual
+ *  loss), so threads spread out instead of following each other.
+ *  Each worker replays its path on its own scratch board, so rollouts do
+ *  not allocate.  The greedy rollouts can share a TetrisTable with the rest
+ *  of the AI, so a board scored once is not scored again by any thread.
+ *
+ *  The search can be given a deadline, in which case the workers stop
+ *  starting rollouts once it passes, and the placement explored the most so
+ *  far is played.  Every placement of the current piece is tried at least
+ *  once regardless.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisMCTS {
+
+  // Shared, fixed values
+  public static final int RANDOM = 0;  // Rollout policy identifiers
+  public static final int GREEDY = 1;
+
+  public static final int DEFAULT_ROLLOUTS = 2000;  // Per decision
+  public static final int DEFAULT_DEPTH = 1;  // Pieces past the preview
+  public static final int DEFAULT_NODES = 1 << 18;  // Tree capacity
+
+  // Fixed values
+  private static final int UNEXPANDED = 0;  // Node state identifiers
+  private static final int EXPANDING = 1;
+  private static final int EXPANDED = 2;
+
+  private static final double EXPLORATION = 0.1;  // UCT exploration factor
+  private static final double SCALE = 5;  // Evaluation per unit of reward
+  private static final long FIXED = 1000000;  // Fixed point for score totals
+
+  // Changeable values
+  private double[] weights;  // Weight of each feature in the evaluation
+  private int rollouts;  // Number of rollouts per decision
+  private int depth;  // Pieces played past the known ones in each rollout
+  private int policy;  // How rollouts place their pieces
+  private TetrisTable table;  // Cached evaluations, or null for none
+  private ForkJoinPool pool;  // Pool running the workers
+  private Worker[] workers;  // One per thread, reused across decisions
+  private Rollouts coordinator;  // Task starting the workers
+
+  private TetrisBoard root;  // Board the search started from
+  private double baseline;  // Evaluation of the root board
+  private int[] types;  // Types of the known pieces
+  private int count;
+
+  private int[] parent;  // The tree, one entry per node
+  private int[] firstChild;
+  private int[] childCount;
+  private int[] move;  // Placement leading to the node
+  private AtomicIntegerArray state;
+  private AtomicIntegerArray visits;
+  private AtomicLongArray total;
+  private AtomicInteger nodes;  // Nodes in use
+  private AtomicInteger started;  // Rollouts begun in this decision
+  private AtomicInteger finished;  // Rollouts backed up in this decision
+  private long deadline;  // System.nanoTime() to stop at, 0 if none
+  private volatile boolean expired;  // Whether the deadline cut it short
+  private int reached;  // Deepest tree level of the last decision
+
+  private long elapsed;  // Duration of the last decision (ns)
+  private double rate;  // Rollouts per second in the last decision
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new tree search, running its rollouts on the
+   *  given pool.  */
+  public TetrisMCTS(double[] weights, int rollouts, int capacity,
+                    ForkJoinPool pool) {
+    this.weights = new double[TetrisSearch.FEATURES];
+    System.arraycopy(weights, 0, this.weights, 0, TetrisSearch.FEATURES);
+    this.rollouts = rollouts;
+    this.depth = DEFAULT_DEPTH;
+    this.policy = GREEDY;
+    this.pool = pool;
+    this.workers = new Worker[Math.max(1, pool.getParallelism())];
+    this.coordinator = new Rollouts(this);
+
+    this.parent = new int[capacity];
+    this.firstChild = new int[capacity];
+    this.childCount = new int[capacity];
+    this.move = new int[capacity];
+    this.state = new AtomicIntegerArray(capacity);
+    this.visits = new AtomicIntegerArray(capacity);
+    this.total = new AtomicLongArray(capacity);
+    this.nodes = new AtomicInteger();
+    this.started = new AtomicInteger();
+    this.finished = new AtomicInteger();
+    this.types = new int[TetrisEngine.PREVIEW + 1];
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisMCTS(double[] weights, int rollouts, int capacity) {
+    this(weights, rollouts, capacity, ForkJoinPool.commonPool());
+  }
+
+  /** Alternate constructor #2. */
+  public TetrisMCTS() {
+    this(TetrisSearch.DEFAULT_WEIGHTS, DEFAULT_ROLLOUTS, DEFAULT_NODES);
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Return the best placement of the first piece in types, given
+   *  that the following count - 1 pieces are the rest of types, or NONE if
+   *  it fits nowhere.  The first piece starts from the given row.  */
+  public int search(TetrisBoard board, int row, int[] types, int count) {
+    return this.search(board, row, types, count, 0);
+  }
+
+  /** PURPOSE: Return the best placement, as search() does, but stop
+   *  starting rollouts at the given System.nanoTime(), or never if it is 0.  */
+  public int search(TetrisBoard board, int row, int[] types, int count,
+                    long deadline) {
+    long start = System.nanoTime();
+    this.prepare(board, types, count);
+    this.deadline = deadline;
+
+    this.expand(0, board, 0, row);  // The root is always expanded first
+    if (this.childCount[0] > 0) {
+      if (this.workers.length == 1) {
+        this.workers[0].run();
+      } else {
+        this.coordinator.reinitialize();
+        this.pool.invoke(this.coordinator);
+      }
+    }
+
+    int best = TetrisSearch.NONE;
+    int bestVisits = -1;
+    long bestTotal = -1;
+    for (int num = 0; num < this.childCount[0]; num++) {
+      int child = this.firstChild[0] + num;
+      int n = this.visits.get(child);
+      long sum = this.total.get(child);
+      if (n > bestVisits || (n == bestVisits && sum > bestTotal)) {
+        bestVisits = n;  // Ties happen when the deadline cut it short
+        bestTotal = sum;
+        best = this.move[child];
+      }
+    }
+
+    this.reached = 0;
+    for (int num = 0; num < this.workers.length; num++) {
+      this.reached = Math.max(this.reached, this.workers[num].reached);
+    }
+
+    this.elapsed = System.nanoTime() - start;
+    int done = this.finished.get();
+    this.rate = (this.elapsed > 0) ? done * 1e9 / this.elapsed : 0;
+    return best;
+  }
+
+  /** PURPOSE: Reset the tree to a single root for the given position. */
+  private void prepare(TetrisBoard board, int[] types, int count) {
+    if (this.root == null || this.root.getHeight() != board.getHeight() ||
+        this.root.getWidth() != board.getWidth()) {
+      this.root = new TetrisBoard(board.getHeight(), board.getWidth());
+      for (int num = 0; num < this.workers.length; num++) {
+        this.workers[num] = new Worker(this, board.getHeight(),
+                                       board.getWidth());
+      }
+    }
+
+    this.root.copyFrom(board);
+    this.baseline = TetrisSearch.evaluate(this.weights, this.root, 0,
+                                          this.workers[0].heights);
+    this.count = Math.min(count, this.types.length);
+    System.arraycopy(types, 0, this.types, 0, this.count);
+
+    this.nodes.set(1);
+    this.started.set(0);
+    this.finished.set(0);
+    this.expired = false;
+    for (int num = 0; num < this.workers.length; num++) {
+      this.workers[num].reached = 0;
+    }
+    this.parent[0] = -1;
+    this.childCount[0] = 0;
+    this.state.set(0, UNEXPANDED);
+    this.visits.set(0, 0);
+    this.total.set(0, 0);
+  }
+
+  /** PURPOSE: Add a child for every placement of the piece at the given
+   *  level on the board of a node.  Return false if another thread is
+   *  expanding the node, or the tree is full.  */
+  private boolean expand(int node, TetrisBoard board, int level, int row) {
+    if (!this.state.compareAndSet(node, UNEXPANDED, EXPANDING)) return false;
+
+    int type = this.types[level];
+    int room = TetrisPiece.ROTATIONS * board.getWidth();
+    int first = this.nodes.getAndAdd(room);
+    if (first + room > this.parent.length) {  // No room left
+      this.childCount[node] = 0;
+      this.state.set(node, EXPANDED);
+      return false;
+    }
+
+    int children = 0;
+    for (int rot = 0; rot < TetrisPiece.ROTATIONS; rot++) {
+      for (int col = 0; col < board.getWidth(); col++) {
+        int start = TetrisSearch.getStartRow(board, type, rot, row, col);
+        if (start < 0) continue;
+
+        int child = first + children;
+        this.parent[child] = node;
+        this.childCount[child] = 0;
+        this.move[child] = TetrisSearch.encode(rot,
+          TetrisPiece.getDropRow(board, type, rot, start, col), col);
+        this.state.set(child, UNEXPANDED);
+        this.visits.set(child, 0);
+        this.total.set(child, 0);
+        children++;
+      }
+    }
+
+    this.firstChild[node] = first;
+    this.childCount[node] = children;
+    this.state.set(node, EXPANDED);  // Publishes the children
+    return true;
+  }
+
+  /** PURPOSE: Return the child of a node with the best UCT score. */
+  private int select(int node) {
+    double logVisits = Math.log(Math.max(1, this.visits.get(node)));
+    int best = -1;
+    double bestScore = Double.NEGATIVE_INFINITY;
+
+    for (int num = 0; num < this.childCount[node]; num++) {
+      int child = this.firstChild[node] + num;
+      int n = this.visits.get(child);
+      if (n == 0) return child;  // Try everything once
+
+      double score = ((double)this.total.get(child) / FIXED / n) +
+                     (EXPLORATION * Math.sqrt(logVisits / n));
+      if (score > bestScore) {
+        bestScore = score;
+        best = child;
+      }
+    }
+
+    return best;
+  }
+
+  /** PURPOSE: Turn the evaluation of a board into a reward between 0 and
+   *  1, where 0.5 is as good as the board the search started from.  */
+  private double getReward(double value) {
+    return 1 / (1 + Math.exp((this.baseline - value) / SCALE));
+  }
+
+  /** PURPOSE: Return the number of rollouts per decision. */
+  public int getRollouts() {
+    return this.rollouts;
+  }
+
+  /** PURPOSE: Set the number of rollouts per decision. */
+  public void setRollouts(int rollouts) {
+    this.rollouts = rollouts;
+  }
+
+  /** PURPOSE: Set the number of pieces played past the known ones per
+   *  rollout.  */
+  public void setDepth(int depth) {
+    this.depth = depth;
+  }
+
+  /** PURPOSE: Set how rollouts place their pieces, RANDOM or GREEDY. */
+  public void setPolicy(int policy) {
+    this.policy = policy;
+  }
+
+  /** PURPOSE: Return the weights of the evaluation features. */
+  public double[] getWeights() {
+    return this.weights;
+  }
+
+  /** PURPOSE: Set the weights of the evaluation features.  The table keeps
+   *  the evaluations made with the old ones until it is cleared.  */
+  public void setWeights(double[] weights) {
+    System.arraycopy(weights, 0, this.weights, 0, TetrisSearch.FEATURES);
+  }
+
+  /** PURPOSE: Return the table caching the evaluations of greedy rollouts,
+   *  or null if there is none.  */
+  public TetrisTable getTable() {
+    return this.table;
+  }
+
+  /** PURPOSE: Set the table caching the evaluations of greedy rollouts, or
+   *  null to score every board.  It must only hold evaluations made with
+   *  the weights of this search.  */
+  public void setTable(TetrisTable table) {
+    this.table = table;
+  }
+
+  /** PURPOSE: Return the number of rollouts per second in the last
+   *  decision.  */
+  public double getRolloutRate() {
+    return this.rate;
+  }
+
+  /** PURPOSE: Return the number of rollouts completed in the last
+   *  decision.  */
+  public int getCompleted() {
+    return this.finished.get();
+  }
+
+  /** PURPOSE: Return the deepest level of the tree reached in the last
+   *  decision, 1 being the placements of the current piece.  */
+  public int getReached() {
+    return this.reached;
+  }
+
+  /** PURPOSE: Return whether the last decision was cut short by its
+   *  deadline.  */
+  public boolean isTimedOut() {
+    return this.expired;
+  }
+
+  /** PURPOSE: Return the duration of the last decision, in ns. */
+  public long getElapsed() {
+    return this.elapsed;
+  }
+
+  /** PURPOSE: Return the number of nodes in the tree of the last decision. */
+  public int getNodes() {
+    return Math.min(this.nodes.get(), this.parent.length);
+  }
+
+/*** Nested classes ***/
+
+  /** PURPOSE: Starts every worker on the pool and waits for them. */
+  private static class Rollouts extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private TetrisMCTS search;
+
+    private Rollouts(TetrisMCTS search) {
+      this.search = search;
+    }
+
+    protected void compute() {
+      Worker[] workers = this.search.workers;
+      for (int num = 0; num < workers.length; num++) {
+        workers[num].reinitialize();
+      }
+      invokeAll(workers);
+    }
+
+  }
+
+  /** PURPOSE: Runs rollouts until the budget for the decision is spent. */
+  private static class Worker extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private TetrisMCTS search;
+    private TetrisBoard board;  // Board at the end of the current path
+    private int[] heights;
+    private int[] path;  // Nodes walked through by the current rollout
+    private int reached;  // Deepest tree level walked to
+
+    private Worker(TetrisMCTS search, int rows, int cols) {
+      this.search = search;
+      this.board = new TetrisBoard(rows, cols);
+      this.heights = new int[cols];
+      this.path = new int[TetrisEngine.PREVIEW + 2];
+    }
+
+    protected void compute() {
+      this.run();
+    }
+
+    /** PURPOSE: Run rollouts until the budget is spent, or the deadline
+     *  passes once every child of the root has been tried.  */
+    private void run() {
+      TetrisMCTS s = this.search;
+      int num;
+      while ((num = s.started.getAndIncrement()) < s.rollouts) {
+        if (s.deadline != 0 && num >= s.childCount[0] &&
+            System.nanoTime() - s.deadline >= 0) {
+          s.expired = true;
+          break;
+        }
+        this.rollout();
+        s.finished.incrementAndGet();
+      }
+    }
+
+    /** PURPOSE: Walk down the tree, expand it, play on, and back up the
+     *  reward.  */
+    private void rollout() {
+      TetrisMCTS s = this.search;
+      int node = 0;
+      int level = 0;
+      int lines = 0;
+      int length = 0;
+
+      this.board.copyFrom(s.root);
+      s.visits.incrementAndGet(0);
+      this.path[length++] = 0;
+
+      while (level < s.count) {
+        if (s.state.get(node) == UNEXPANDED) {
+          if (!s.expand(node, this.board, level, 0)) break;
+        }
+        if (s.state.get(node) != EXPANDED || s.childCount[node] == 0) break;
+
+        node = s.select(node);
+        s.visits.incrementAndGet(node);  // Virtual loss until backed up
+        this.path[length++] = node;
+
+        int placement = s.move[node];
+        TetrisPiece.place(this.board, s.types[level],
+                          TetrisSearch.getRotation(placement),
+                          TetrisSearch.getRow(placement),
+                          TetrisSearch.getCol(placement));
+        lines += this.board.clearLines();
+        level++;
+      }
+
+      if (level > this.reached) this.reached = level;
+      double reward = this.playOut(level, lines);
+      long fixed = (long)(reward * FIXED);
+      for (int num = 0; num < length; num++) {
+        s.total.addAndGet(this.path[num], fixed);
+      }
+    }
+
+    /** PURPOSE: Play the rest of the pieces on the board and return the
+     *  reward.  Every rollout ends after the same number of pieces, wherever
+     *  it left the tree, so that their rewards can be compared.  */
+    private double playOut(int level, int lines) {
+      TetrisMCTS s = this.search;
+      ThreadLocalRandom rand = ThreadLocalRandom.current();
+
+      for (; level < s.count + s.depth; level++) {
+        if (this.board.isFull()) return 0;  // The game would be over
+
+        int type = (level < s.count) ? s.types[level] :
+                                       rand.nextInt(TetrisPiece.TYPES);
+        int placement = (s.policy == GREEDY) ? this.getGreedy(type) :
+                                               this.getRandom(type, rand);
+        if (placement == TetrisSearch.NONE) return 0;
+
+        TetrisPiece.place(this.board, type,
+                          TetrisSearch.getRotation(placement),
+                          TetrisSearch.getRow(placement),
+                          TetrisSearch.getCol(placement));
+        lines += this.board.clearLines();
+      }
+
+      if (this.board.isFull()) return 0;
+      return s.getReward(TetrisSearch.evaluate(s.weights, this.board, lines,
+                                             this.heights));
+    }
+
+    /** PURPOSE: Return a random placement of the given type that fits. */
+    private int getRandom(int type, ThreadLocalRandom rand) {
+      int cols = this.board.getWidth();
+      int offset = rand.nextInt(TetrisPiece.ROTATIONS * cols);
+
+      for (int num = 0; num < TetrisPiece.ROTATIONS * cols; num++) {
+        int index = (offset + num) % (TetrisPiece.ROTATIONS * cols);
+        int rot = index / cols;
+        int col = index % cols;
+        int start = TetrisSearch.getStartRow(this.board, type, rot, 0, col);
+        if (start >= 0) {
+          return TetrisSearch.encode(rot, TetrisPiece.getDropRow(this.board,
+                                     type, rot, start, col), col);
+        }
+      }
+
+      return TetrisSearch.NONE;
+    }
+
+    /** PURPOSE: Return the evaluation of the board without the lines it
+     *  cleared, from the table if it was scored before.  */
+    private double evaluate() {
+      TetrisMCTS s = this.search;
+      TetrisTable table = s.table;
+      if (table == null) {
+        return TetrisSearch.evaluate(s.weights, this.board, 0, this.heights);
+      }
+
+      long hash = this.board.getHash();
+      double value = table.get(hash);
+      if (value != value) {  // NaN, so not in the table
+        value = TetrisSearch.evaluate(s.weights, this.board, 0, this.heights);
+        table.put(hash, value);
+      }
+      return value;
+    }
+
+    /** PURPOSE: Return the placement of the given type whose board has the
+     *  best evaluation, ignoring the lines it clears.  Rows that are only
+     *  about to be cleared still count as filled, which is close enough for
+     *  a rollout and avoids copying the board for every candidate.  */
+    private int getGreedy(int type) {
+      TetrisMCTS s = this.search;
+      int best = TetrisSearch.NONE;
+      double bestValue = Double.NEGATIVE_INFINITY;
+
+      for (int rot = 0; rot < TetrisPiece.ROTATIONS; rot++) {
+        for (int col = 0; col < this.board.getWidth(); col++) {
+          int start = TetrisSearch.getStartRow(this.board, type, rot, 0, col);
+          if (start < 0) continue;
+
+          int drop = TetrisPiece.getDropRow(this.board, type, rot, start, col);
+          TetrisPiece.place(this.board, type, rot, drop, col);
+          double value = this.evaluate();
+          TetrisPiece.remove(this.board, type, rot, drop, col);
+
+          if (value > bestValue) {
+            bestValue = value;
+            best = TetrisSearch.encode(rot, drop, col);
+          }
+        }
+      }
+
+      return best;
+    }
+
+  }
+
+}
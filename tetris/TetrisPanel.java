@@ -60,10 +60,5 @@ public class TetrisPanel extends JPanel {
   public void start() {
     this.game.start();
   }
-
-  /** PURPOSE: Paint. */
-  public void paint(Graphics g) {
-    if (this.game != null) this.game.paint(g);
-  }
   
 }
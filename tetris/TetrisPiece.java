@@ -2,11 +2,19 @@ package tetris;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.util.Random;
+import java.util.Arrays;
 
 /**
  *  PURPOSE: This class defines an individual piece on the tetris board.
  *
+ *  NOTES: A piece is only a type, a rotation, and the position of the cell it
+ *  rotates around.  The cells it covers under each of its four rotations are
+ *  computed once, when the class is loaded, both as offsets from that center
+ *  cell and as one bitmask per row, so that moving and rotating a piece never
+ *  has to do more than look up a table and test a few masks against the
+ *  board.  Only the thread running the game moves pieces, so a move never
+ *  has to wait for another one to finish.
+ *
  *  @author Brenn Berliner, ARCH 486, Spring 2009
  */
 
@@ -14,6 +22,8 @@ public class TetrisPiece {
 
   // Shared, fixed values
   public static final int SIZE = 4;
+  public static final int TYPES = 7;  // Number of piece types
+  public static final int ROTATIONS = 4;  // Number of rotation states
 
   // Fixed values
   private static final int SQUARE = 0;  // Piece type identifiers
@@ -24,316 +34,324 @@ public class TetrisPiece {
   private static final int S_LEFT = 5;
   private static final int S_RIGHT = 6;
 
+  // Cells comprising a piece of each shape at the top of the board, as
+  // (row, col) offsets from the center cell
+  private static final int[][] SHAPES = {
+    { 0, 0,   1, 0,   0, 1,   1, 1 },  // SQUARE
+    { 0, -1,  0, 0,   0, 1,   0, 2 },  // LINE
+    { 0, -1,  0, 0,   1, 0,   0, 1 },  // PYRAMID
+    { 0, -1,  1, -1,  0, 0,   0, 1 },  // L_LEFT
+    { 0, -1,  0, 0,   0, 1,   1, 1 },  // L_RIGHT
+    { 0, -1,  0, 0,   1, 0,   1, 1 },  // S_LEFT
+    { 1, -1,  0, 0,   1, 0,   0, 1 }   // S_RIGHT
+  };
+
+  private static final Color[] COLORS = {
+    new Color(255, 128, 0),  // Color.ORANGE does not work!
+    Color.RED, Color.CYAN, Color.MAGENTA, Color.YELLOW, Color.BLUE, Color.GREEN
+  };
+
+  // Rotation tables, indexed by [type][rotation]
+  private static final int[][][] ROWS = new int[TYPES][ROTATIONS][SIZE];
+  private static final int[][][] COLS = new int[TYPES][ROTATIONS][SIZE];
+  private static final int[][][] MASKS = new int[TYPES][ROTATIONS][];
+  private static final int[][] TOP = new int[TYPES][ROTATIONS];
+  private static final int[][] LEFT = new int[TYPES][ROTATIONS];
+  private static final int[][] WIDTH = new int[TYPES][ROTATIONS];
+  private static final int[][][] BOTTOMS = new int[TYPES][ROTATIONS][];
+
+  static {
+    for (int type = 0; type < TYPES; type++) {
+      for (int cell = 0; cell < SIZE; cell++) {
+        int row = SHAPES[type][cell * 2];
+        int col = SHAPES[type][(cell * 2) + 1];
+
+        for (int rot = 0; rot < ROTATIONS; rot++) {
+          ROWS[type][rot][cell] = row;
+          COLS[type][rot][cell] = col;
+
+          if (type != SQUARE) {  // Counter-clockwise around the center
+            int temp = row;
+            row = -col;
+            col = temp;
+          }
+        }
+      }
+
+      for (int rot = 0; rot < ROTATIONS; rot++) {
+        int top = SIZE, bottom = -SIZE, left = SIZE, right = -SIZE;
+        for (int cell = 0; cell < SIZE; cell++) {
+          top = Math.min(top, ROWS[type][rot][cell]);
+          bottom = Math.max(bottom, ROWS[type][rot][cell]);
+          left = Math.min(left, COLS[type][rot][cell]);
+          right = Math.max(right, COLS[type][rot][cell]);
+        }
+
+        TOP[type][rot] = top;
+        LEFT[type][rot] = left;
+        WIDTH[type][rot] = right - left + 1;
+        MASKS[type][rot] = new int[bottom - top + 1];
+        BOTTOMS[type][rot] = new int[right - left + 1];
+        Arrays.fill(BOTTOMS[type][rot], -SIZE);
+        for (int cell = 0; cell < SIZE; cell++) {
+          int r = ROWS[type][rot][cell];
+          int c = COLS[type][rot][cell] - left;
+          MASKS[type][rot][r - top] |= 1 << c;
+          BOTTOMS[type][rot][c] = Math.max(BOTTOMS[type][rot][c], r);
+        }
+      }
+    }
+  }
+
   // Changeable values
   private int type;  // Type of the piece
+  private int rotation;  // Rotation state of the piece
   private boolean active;  // Whether it has been dropped
-  private boolean busy;  // Whether to wait before executing
 
   private int centerRow;  // Cell to rotate around
   private int centerCol;
 
-  private TetrisCell[] piece;  // Array of cells in the board
-  private Color color;  // Color of the piece
-
 /*** CONSTRUCTOR(s) ***/
 
-  /** PURPOSE: Initialize a new piece. */
-  public TetrisPiece(TetrisBoard b) {
-    TetrisBoard board = b;
-    Random rand = new Random();
+  /** PURPOSE: Initialize a new piece of the given type. */
+  public TetrisPiece(TetrisBoard b, int type) {
+    this.reset(b, type);
+  }
+
+/*** CUSTOM Methods ***/
 
-    this.type = rand.nextInt(7);  // Get a random type
+  /** PURPOSE: Turn the piece into a new piece of the given type, at the top
+   *  of the board, so the same object can be used for every piece.  */
+  public void reset(TetrisBoard b, int type) {
+    this.type = type;
+    this.rotation = 0;
     this.active = true;
-    this.busy = false;
 
     this.centerRow = 0;  // Start in the middle of the top row
-    this.centerCol = (board.getWidth() / 2) + (board.getWidth() % 2) - 1;
-
-    this.piece = new TetrisCell[SIZE];
-
-    int x = this.centerRow;
-    int y = this.centerCol;    
-
-    switch (this.type) {  // List the cells comprising a piece of this shape
-      case SQUARE:
-        this.piece[0] = board.getCell(x, y);
-        this.piece[1] = board.getCell(x+1, y);
-        this.piece[2] = board.getCell(x, y+1);
-        this.piece[3] = board.getCell(x+1, y+1);
-
-        this.color = new Color(255, 128, 0);  // Color.ORANGE does not work!
-        break;
-      case LINE:
-        this.piece[0] = board.getCell(x, y-1);
-        this.piece[1] = board.getCell(x, y);
-        this.piece[2] = board.getCell(x, y+1);
-        this.piece[3] = board.getCell(x, y+2);
-
-        this.color = Color.RED;
-        break;
-      case PYRAMID:
-        this.piece[0] = board.getCell(x, y-1);
-        this.piece[1] = board.getCell(x, y);
-        this.piece[2] = board.getCell(x+1, y);
-        this.piece[3] = board.getCell(x, y+1);
-
-        this.color = Color.CYAN;
-        break;
-      case L_LEFT:
-        this.piece[0] = board.getCell(x, y-1);
-        this.piece[1] = board.getCell(x+1, y-1);
-        this.piece[2] = board.getCell(x, y);
-        this.piece[3] = board.getCell(x, y+1);
-
-        this.color = Color.MAGENTA;
-        break;
-      case L_RIGHT:
-        this.piece[0] = board.getCell(x, y-1);
-        this.piece[1] = board.getCell(x, y);
-        this.piece[2] = board.getCell(x, y+1);
-        this.piece[3] = board.getCell(x+1, y+1);
-
-        this.color = Color.YELLOW;
-        break;
-      case S_LEFT:
-        this.piece[0] = board.getCell(x, y-1);
-        this.piece[1] = board.getCell(x, y);
-        this.piece[2] = board.getCell(x+1, y);
-        this.piece[3] = board.getCell(x+1, y+1);
-
-        this.color = Color.BLUE;
-        break;
-      case S_RIGHT:
-        this.piece[0] = board.getCell(x+1, y-1);
-        this.piece[1] = board.getCell(x, y);
-        this.piece[2] = board.getCell(x+1, y);
-        this.piece[3] = board.getCell(x, y+1);
-
-        this.color = Color.GREEN;
-        break;
-    }
+    this.centerCol = getStartCol(b);
   }
 
-/*** CUSTOM Methods ***/
-
   /** PURPOSE: Rotate the piece counter-clockwise in the ancient tetris
    *  tradition.
-   * 
+   *
    *  @require (1) rotation has been confirmed to be valid  */
   public void rotate(TetrisBoard b) {
-    if (!this.busy) {
-      this.busy = true;
-
-      TetrisBoard board = b;
-      this.setEmpty(this.piece);
-
-      for (int cell = 0; cell < SIZE; cell++) {
-        int[] rotated = this.getRotation(cell);
-    
-        this.piece[cell] = board.getCell(
-                           this.piece[cell].getRow() + rotated[0], 
-                           this.piece[cell].getCol() + rotated[1]);
-      }
-
-      this.setActive();
-
-      this.busy = false;
-    } else {
-      try {
-        /* This weirdness is necessary to prevent display artifacts and piece
-         * fragmentation.  If there is no verification as to whether the thread
-         * is busy, rectangles will be randomly left on the board at higher
-         * speeds, and pieces will separate when the piece tries to move down
-         * in the middle of another move.  On the other hand, if the condition
-         * cycles too fast, you will get stack overflow errors and keystrokes
-         * will be ignored.  Pausing for 1 ms allows for enough down time and
-         * therefore cleanly fixes both of these problems. */
-        Thread.sleep(1);
-        if (this.canRotate(b)) {
-          this.rotate(b);
-        }
-      } catch (InterruptedException e) {}
-    }
+    this.setMarks(b, TetrisCell.EMPTY, TetrisCell.COLOR_EMPTY);
+    this.rotation = (this.rotation + 1) % ROTATIONS;
+    this.setActive(b);
   }
 
   /** PURPOSE: Move the piece left, right, or down on the board.
-   * 
+   *
    *  @require (1) move has been confirmed to be valid  */
   public void move(TetrisBoard b, int col, int row) {
-    if (!this.busy) {
-      this.busy = true;
-
-      TetrisBoard board = b;
-      this.setEmpty(this.piece);
+    this.setMarks(b, TetrisCell.EMPTY, TetrisCell.COLOR_EMPTY);
+    this.centerRow += row;
+    this.centerCol += col;
+    this.setActive(b);
+  }
 
-      for (int cell = 0; cell < SIZE; cell++) {
-        this.piece[cell] = board.getCell(
-                           this.piece[cell].getRow() + row, 
-                           this.piece[cell].getCol() + col);
-      }
+  /** PURPOSE: Return a boolean indicating whether the piece can be rotated in
+   *  its current position.  */
+  public boolean canRotate(TetrisBoard b) {
+    return fits(b, this.type, (this.rotation + 1) % ROTATIONS,
+                this.centerRow, this.centerCol);
+  }
 
-      this.centerRow += row;
-      this.centerCol += col;
-      
-      this.setActive();
-
-      this.busy = false;
-    } else {
-      try {
-        Thread.sleep(1);  // See note above
-        if (this.canMove(b, col, row)) {
-          this.move(b, col, row);
-        }
-      } catch (InterruptedException e) {}
-    }
+  /** PURPOSE: Return a boolean indicating whether the piece can be moved
+   *  according to the given parameters.
+   *
+   *  @require (1) Math.abs(row) == 1
+   *           (2) Math.abs(col) == 1
+               (3) Math.abs(row) + Math.abs(col) == 1  */
+  public boolean canMove(TetrisBoard b, int col, int row) {
+    return fits(b, this.type, this.rotation,
+                this.centerRow + row, this.centerCol + col);
   }
 
-  /** PURPOSE: Return an array of length 2 indicating the rotation.  The array
-   *  indices represent what would be the change in position of the x and y
-   *  values, respectively, if the cell at the given index was rotated.
-   * 
-   *  @require (1) cell < SIZE  */
-  private int[] getRotation(int cell) {
-    int[] rotated = new int[2];
-              
-    int row = this.piece[cell].getRow();
-    int col = this.piece[cell].getCol();
-    int x = 0, y = 0;
-
-    if (this.type != SQUARE) {
-      if (cell == 3 && this.type == LINE) {
-        if (col != this.centerCol) {
-          if (col > this.centerCol) { x = -2; y = -2; }
-          else                      { x = 2;  y = 2;  }
-        } else {
-          if (row > this.centerRow) { x = -2; y = 2;  }
-          else                      { x = 2;  y = -2; }
-        }
+  /** PURPOSE: Return a boolean indicating whether a piece of the given type
+   *  and rotation fits on the board with its center at the given cell.  */
+  public static boolean fits(TetrisBoard board, int type, int rotation,
+                             int row, int col) {
+    int[] masks = MASKS[type][rotation];
+    int top = row + TOP[type][rotation];
+    int left = col + LEFT[type][rotation];
+
+    if (top < 0 || top + masks.length > board.getHeight() ||
+        left < 0 || left + WIDTH[type][rotation] > board.getWidth()) {
+      return false;
+    }
 
-      } else {  // This is easier to read and understand than some algorithm...
-        if (col < this.centerCol) {
-          if (row < this.centerRow)       { x = 2;  y = 0;  }
-          else if (row == this.centerRow) { x = 1;  y = 1;  }
-          else                            { x = 0;  y = 2;  }
-        } else if (col == this.centerCol) {
-          if (row < this.centerRow)       { x = 1;  y = -1; }
-          else if (row == this.centerRow) { x = 0;  y = 0;  }
-          else                            { x = -1; y = 1;  }
-        } else {
-          if (row < this.centerRow)       { x = 0;  y = -2; }
-          else if (row == this.centerRow) { x = -1; y = -1; }
-          else                            { x = -2; y = 0;  }
-        }
+    for (int r = 0; r < masks.length; r++) {
+      if ((board.getRowMask(top + r) & (masks[r] << left)) != 0) {
+        return false;
       }
     }
 
-    rotated[0] = x;
-    rotated[1] = y;    
-
-    return rotated;
+    return true;
   }
 
-  /** PURPOSE: Return a boolean indicating whether the piece can be rotated in
-   *  its current position.  */
-  public boolean canRotate(TetrisBoard b) {
-    TetrisBoard board = b;
-    boolean valid = true;
-
-    for (int cell = 0; cell < SIZE; cell++) {
-      int[] rotated = this.getRotation(cell);
-
-      int newRow = this.piece[cell].getRow() + rotated[0];
-      int newCol = this.piece[cell].getCol() + rotated[1];
-    
-      if (newRow < board.getHeight() && newRow >= 0 && 
-        newCol < board.getWidth() && newCol >= 0) {
-        if (board.getCell(newRow, newCol).getMark() == TetrisCell.INACTIVE) {
-          valid = false;
-          break;
-        }
-      } else {
-        valid = false;
+  /** PURPOSE: Return the lowest row the center of a piece of the given type
+   *  and rotation can drop to, starting from the given position.  When the
+   *  piece is above the top of every column it covers, that is read from
+   *  the column heights; under an overhang, it drops one row at a time.
+   *
+   *  @require (1) fits(board, type, rotation, row, col)  */
+  public static int getDropRow(TetrisBoard board, int type, int rotation,
+                               int row, int col) {
+    int[] bottoms = BOTTOMS[type][rotation];
+    int left = col + LEFT[type][rotation];
+    int rows = board.getHeight();
+    int drop = rows;
+
+    for (int c = 0; c < bottoms.length; c++) {
+      int space = rows - board.getColumnHeight(left + c) -
+                  (row + bottoms[c]) - 1;  // Empty cells under the piece
+      if (space < 0) {
+        drop = -1;  // Under an overhang
         break;
       }
+      drop = Math.min(drop, space);
     }
+    if (drop >= 0) return row + drop;
 
-    return valid;
+    while (fits(board, type, rotation, row + 1, col)) {
+      row++;
+    }
+    return row;
   }
 
-  /** PURPOSE: Return a boolean indicating whether the piece can be moved
-   *  according to the given parameters.
-   * 
-   *  @require (1) Math.abs(row) == 1
-   *           (2) Math.abs(col) == 1
-               (3) Math.abs(row) + Math.abs(col) == 1  */
-  public boolean canMove(TetrisBoard b, int col, int row) {
-    TetrisBoard board = b;
-    boolean valid = true;
+  /** PURPOSE: Mark the cells of a piece of the given type and rotation as
+   *  inactive on the board, without touching its colors.  Used to simulate
+   *  placements on a scratch board.
+   *
+   *  @require (1) fits(board, type, rotation, row, col)  */
+  public static void place(TetrisBoard board, int type, int rotation,
+                           int row, int col) {
+    int[] masks = MASKS[type][rotation];
+    int top = row + TOP[type][rotation];
+    int left = col + LEFT[type][rotation];
+
+    for (int r = 0; r < masks.length; r++) {
+      board.fillRow(top + r, masks[r] << left);
+    }
+  }
 
-    for (int cell = 0; cell < SIZE; cell++) {
-      int nextRow = this.piece[cell].getRow() + row;
-      int nextCol = this.piece[cell].getCol() + col;
-
-      if ((row > 0 && nextRow < board.getHeight()) || 
-          (col > 0 && nextCol < board.getWidth()) || 
-          (col < 0 && nextCol >= 0)) {
-        if (board.getCell(nextRow, nextCol).getMark() == TetrisCell.INACTIVE) {
-          valid = false;
-          break;
-        }
-      } else {
-        valid = false;
-        break;
-      }
+  /** PURPOSE: Undo place(), marking the cells of the piece as empty again.
+   *
+   *  @require (1) place(board, type, rotation, row, col) was just called  */
+  public static void remove(TetrisBoard board, int type, int rotation,
+                            int row, int col) {
+    int[] masks = MASKS[type][rotation];
+    int top = row + TOP[type][rotation];
+    int left = col + LEFT[type][rotation];
+
+    for (int r = 0; r < masks.length; r++) {
+      board.emptyRow(top + r, masks[r] << left);
     }
+  }
 
-    return valid;
+  /** PURPOSE: Return the cells a piece of the given type and rotation,
+   *  centered at the given cell, covers in a row of the board, as a
+   *  bitmask.  */
+  public static int getMask(int type, int rotation, int row, int col,
+                            int boardRow) {
+    int[] masks = MASKS[type][rotation];
+    int r = boardRow - row - TOP[type][rotation];
+    if (r < 0 || r >= masks.length) return 0;
+    return masks[r] << (col + LEFT[type][rotation]);
   }
-  
-  /** PURPOSE: Set all of the cells in the provided array as empty.
-   * 
-   *  @require (1) c.length == SIZE  */
-  public void setEmpty(TetrisCell[] c) {
-    for (int num = 0; num < SIZE; num++) {
-      TetrisCell cell = c[num];
-      cell.setMark(TetrisCell.EMPTY);
-      cell.setColor(TetrisCell.COLOR_EMPTY);
+
+  /** PURPOSE: Mark and color every cell covered by the piece. */
+  private void setMarks(TetrisBoard b, int mark, Color color) {
+    int[] rows = ROWS[this.type][this.rotation];
+    int[] cols = COLS[this.type][this.rotation];
+
+    for (int cell = 0; cell < SIZE; cell++) {
+      int row = this.centerRow + rows[cell];
+      int col = this.centerCol + cols[cell];
+      b.setMark(row, col, mark);
+      if (color != null) b.setColor(row, col, color);
     }
   }
 
   /** PURPOSE: Set the piece as active on the board. */
-  public void setActive() {
+  public void setActive(TetrisBoard b) {
     this.active = true;
-    for (int num = 0; num < SIZE; num++) {
-      this.piece[num].setMark(TetrisCell.ACTIVE);
-      this.piece[num].setColor(this.color);
-    }
+    this.setMarks(b, TetrisCell.ACTIVE, COLORS[this.type]);
   }
 
   /** PURPOSE: Set the piece as inactive on the board. */
-  public void setInactive() {
+  public void setInactive(TetrisBoard b) {
     this.active = false;
-    for (int num = 0; num < SIZE; num++) {
-      this.piece[num].setMark(TetrisCell.INACTIVE);
-    }
+    this.setMarks(b, TetrisCell.INACTIVE, null);
   }
 
   /** PURPOSE: Return a boolean indicating whether the piece is inactive. */
   public boolean isInactive() {
     return !this.active;
   }
-  
-  /** PURPOSE: Return cells of piece. */
-  public TetrisCell[] getCells() {
-   return this.piece;
+
+  /** PURPOSE: Return the type of the piece. */
+  public int getType() {
+    return this.type;
+  }
+
+  /** PURPOSE: Return the rotation state of the piece. */
+  public int getRotation() {
+    return this.rotation;
+  }
+
+  /** PURPOSE: Return the row of the cell the piece rotates around. */
+  public int getRow() {
+    return this.centerRow;
+  }
+
+  /** PURPOSE: Return the column of the cell the piece rotates around. */
+  public int getCol() {
+    return this.centerCol;
+  }
+
+  /** PURPOSE: Return the color of the piece. */
+  public Color getColor() {
+    return COLORS[this.type];
   }
-  
-  /** PURPOSE: Display the piece on the specified window.
-   * 
-   *  @require (1) this.piece != null  */
-  public void displayOn(Graphics g) {
-    for (int num = 0; num < SIZE; num++) {
-      this.piece[num].displayOn(g);
+
+  /** PURPOSE: Return the row offset of a cell from the center of a piece of
+   *  the given type and rotation.
+   *
+   *  @require (1) cell < SIZE  */
+  public static int getCellRow(int type, int rotation, int cell) {
+    return ROWS[type][rotation][cell];
+  }
+
+  /** PURPOSE: Return the column offset of a cell from the center of a piece
+   *  of the given type and rotation.
+   *
+   *  @require (1) cell < SIZE  */
+  public static int getCellCol(int type, int rotation, int cell) {
+    return COLS[type][rotation][cell];
+  }
+
+  /** PURPOSE: Return the column new pieces start in, in the middle of the
+   *  top row.  */
+  public static int getStartCol(TetrisBoard board) {
+    return (board.getWidth() / 2) + (board.getWidth() % 2) - 1;
+  }
+
+  /** PURPOSE: Return the color of pieces of the given type. */
+  public static Color getColor(int type) {
+    return COLORS[type];
+  }
+
+  /** PURPOSE: Display the piece on the specified window. */
+  public void displayOn(Graphics g, TetrisBoard b) {
+    int[] rows = ROWS[this.type][this.rotation];
+    int[] cols = COLS[this.type][this.rotation];
+
+    for (int cell = 0; cell < SIZE; cell++) {
+      b.getCell(this.centerRow + rows[cell],
+                this.centerCol + cols[cell]).displayOn(g);
     }
   }
 
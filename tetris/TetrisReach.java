@@ -0,0 +1,367 @@
+package tetris;
+
+import java.util.Arrays;
+
+/**
+ *  PURPOSE: This class defines the placements a piece can actually reach
+ *  from where it is, together with the shortest sequence of actions that
+ *  gets it to each of them.
+ *
+ *  NOTES: Dropping a piece straight down from the top misses placements
+ *  that need a move after the piece has descended, such as tucking it under
+ *  an overhang or rotating it into a slot.  Instead, this runs a breadth
+ *  first search over the states of the piece, its (rotation, row, column),
+ *  starting from its current state.  The actions are those of TetrisEngine:
+ *  LEFT, RIGHT, ROTATE and DOWN lead to another state when the piece fits
+ *  there, and DROP locks the piece wherever it lands.  Since states are
+ *  visited in order of distance, the first DROP to reach a lock position is
+ *  the shortest way there.  Lock positions are told apart by the cells they
+ *  cover, so rotations of the same shape are only counted once.
+ *
+ *  Whether the piece fits in a state, and where it lands when dropped from
+ *  it, are cached per state, so every state is tested against the board
+ *  only once and the search is linear in the number of states.  Gravity is
+ *  not simulated: the AI moves the piece faster than it falls, and replans
+ *  from the new state if it does fall.  Every array is sized for the board
+ *  once, so enumerating does not allocate.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisReach {
+
+  // Fixed values
+  private static final byte UNKNOWN = 0;  // Fit cache values
+  private static final byte FITS = 1;
+  private static final byte BLOCKED = 2;
+
+  private static final int[] MOVES = {  // Actions that keep the piece going
+    TetrisEngine.LEFT, TetrisEngine.RIGHT, TetrisEngine.ROTATE,
+    TetrisEngine.DOWN
+  };
+
+  // First rotation of each type that covers the same cells as each
+  // rotation, and the offset of its top left corner from the center
+  private static final int[][] SHAPE = new int[TetrisPiece.TYPES]
+                                              [TetrisPiece.ROTATIONS];
+  private static final int[][] TOP = new int[TetrisPiece.TYPES]
+                                            [TetrisPiece.ROTATIONS];
+  private static final int[][] LEFT = new int[TetrisPiece.TYPES]
+                                             [TetrisPiece.ROTATIONS];
+
+  static {
+    for (int type = 0; type < TetrisPiece.TYPES; type++) {
+      for (int rot = 0; rot < TetrisPiece.ROTATIONS; rot++) {
+        TOP[type][rot] = TetrisPiece.SIZE;
+        LEFT[type][rot] = TetrisPiece.SIZE;
+        for (int cell = 0; cell < TetrisPiece.SIZE; cell++) {
+          TOP[type][rot] = Math.min(TOP[type][rot],
+                                    TetrisPiece.getCellRow(type, rot, cell));
+          LEFT[type][rot] = Math.min(LEFT[type][rot],
+                                     TetrisPiece.getCellCol(type, rot, cell));
+        }
+      }
+
+      for (int rot = 0; rot < TetrisPiece.ROTATIONS; rot++) {
+        SHAPE[type][rot] = rot;
+        for (int other = 0; other < rot; other++) {
+          if (isSameShape(type, rot, other)) {
+            SHAPE[type][rot] = SHAPE[type][other];
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  // Changeable values
+  private int rows;  // Size of the board the arrays are sized for
+  private int cols;
+  private int type;  // Type of the piece last enumerated
+
+  private long[] visited;  // One bit per state
+  private long[] locked;  // One bit per lock position, by the cells it covers
+  private int[] lockIndex;  // Index of each locked position in placements
+  private int[] queue;  // States in order of distance
+  private int[] from;  // State each state was first reached from
+  private byte[] action;  // Action leading to each state from there
+  private byte[] fit;  // Whether the piece fits in each state, if known
+  private int[] drop;  // Row the piece lands on from each state, -1 if unknown
+
+  private int[] placements;  // Lock positions found, in order of distance
+  private int[] lockFrom;  // State each was dropped from
+  private int count;
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new enumerator for boards of the given size. */
+  public TetrisReach(int rows, int cols) {
+    this.prepare(rows, cols);
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisReach() {
+    this(TetrisGame.DEFAULT_ROWS, TetrisGame.DEFAULT_COLS);
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Find every lock position of the given piece, and return how
+   *  many there are.  */
+  public int enumerate(TetrisBoard board, TetrisPiece piece) {
+    return this.enumerate(board, piece.getType(), piece.getRotation(),
+                          piece.getRow(), piece.getCol());
+  }
+
+  /** PURPOSE: Find every lock position of a piece of the given type that
+   *  starts with the given rotation and center, and return how many there
+   *  are.  */
+  public int enumerate(TetrisBoard board, int type, int rot, int row,
+                       int col) {
+    this.prepare(board.getHeight(), board.getWidth());
+    Arrays.fill(this.visited, 0);
+    Arrays.fill(this.locked, 0);
+    Arrays.fill(this.fit, UNKNOWN);
+    Arrays.fill(this.drop, -1);
+    this.type = type;
+    this.count = 0;
+    if (row < 0 || row >= this.rows || col < 0 || col >= this.cols ||
+        !this.fits(board, rot, row, col)) return 0;
+
+    int start = this.getState(rot, row, col);
+    int head = 0;
+    int tail = 0;
+    this.visit(start, -1, -1);
+    this.queue[tail++] = start;
+
+    while (head < tail) {
+      int state = this.queue[head++];
+      int r = this.getStateRow(state);
+      int c = this.getStateCol(state);
+      int o = this.getStateRotation(state);
+
+      this.lock(state, o, this.getDrop(board, o, r, c), c);
+
+      for (int num = 0; num < MOVES.length; num++) {
+        int nr = r;
+        int nc = c;
+        int no = o;
+        switch (MOVES[num]) {
+          case TetrisEngine.LEFT: nc--; break;
+          case TetrisEngine.RIGHT: nc++; break;
+          case TetrisEngine.ROTATE: no = (o + 1) % TetrisPiece.ROTATIONS;
+                                    break;
+          default: nr++; break;
+        }
+
+        if (nr >= this.rows || nc < 0 || nc >= this.cols) continue;
+        int next = this.getState(no, nr, nc);
+        if (this.isVisited(next)) continue;
+        if (!this.fits(board, no, nr, nc)) continue;
+
+        this.visit(next, state, MOVES[num]);
+        this.queue[tail++] = next;
+      }
+    }
+
+    return this.count;
+  }
+
+  /** PURPOSE: Return whether the current piece fits in a state, testing
+   *  the board only the first time.  */
+  private boolean fits(TetrisBoard board, int rot, int row, int col) {
+    if (row >= this.rows) return false;
+    int state = this.getState(rot, row, col);
+    if (this.fit[state] == UNKNOWN) {
+      this.fit[state] = TetrisPiece.fits(board, this.type, rot, row, col) ?
+                        FITS : BLOCKED;
+    }
+    return this.fit[state] == FITS;
+  }
+
+  /** PURPOSE: Return the row the current piece lands on when dropped from
+   *  a state, and remember it for every state it falls through.
+   *
+   *  @require (1) fits(board, rot, row, col)  */
+  private int getDrop(TetrisBoard board, int rot, int row, int col) {
+    int bottom = row;
+    while (this.drop[this.getState(rot, bottom, col)] < 0 &&
+           this.fits(board, rot, bottom + 1, col)) {
+      bottom++;
+    }
+
+    int known = this.drop[this.getState(rot, bottom, col)];
+    if (known >= 0) bottom = known;
+    for (int r = row; r <= bottom; r++) {
+      int state = this.getState(rot, r, col);
+      if (this.drop[state] >= 0) break;
+      this.drop[state] = bottom;
+    }
+    return bottom;
+  }
+
+  /** PURPOSE: Record a lock position reached by dropping from a state,
+   *  unless a shorter way to the same cells was found before.  */
+  private void lock(int state, int rot, int row, int col) {
+    int key = this.getLockKey(rot, row, col);
+    if ((this.locked[key >> 6] & (1L << key)) != 0) return;
+
+    this.locked[key >> 6] |= 1L << key;
+    this.lockIndex[key] = this.count;
+    this.placements[this.count] = TetrisSearch.encode(rot, row, col);
+    this.lockFrom[this.count] = state;
+    this.count++;
+  }
+
+  /** PURPOSE: Return the index of a lock position that covers the same
+   *  cells as the given placement, or -1 if it cannot be reached.  The
+   *  placement need not have dropped yet.  */
+  public int find(TetrisBoard board, int placement) {
+    int rot = TetrisSearch.getRotation(placement);
+    int col = TetrisSearch.getCol(placement);
+    int row = TetrisSearch.getRow(placement);
+    if (!TetrisPiece.fits(board, this.type, rot, row, col)) return -1;
+
+    int key = this.getLockKey(rot, TetrisPiece.getDropRow(board, this.type,
+                                                          rot, row, col),
+                              col);
+    if ((this.locked[key >> 6] & (1L << key)) == 0) return -1;
+    return this.lockIndex[key];
+  }
+
+  /** PURPOSE: Fill actions with the shortest sequence of actions leading
+   *  to the lock position of the given index, ending with DROP, and states
+   *  with the state of the piece before each of them.  Return the number of
+   *  actions.
+   *
+   *  @require (1) index < getCount()
+   *           (2) both arrays are at least getPathLength(index) long  */
+  public int getPath(int index, int[] actions, int[] states) {
+    int length = this.getPathLength(index);
+    int state = this.lockFrom[index];
+
+    actions[length - 1] = TetrisEngine.DROP;
+    states[length - 1] = state;
+    for (int pos = length - 2; pos >= 0; pos--) {
+      actions[pos] = this.action[state];
+      state = this.from[state];
+      states[pos] = state;
+    }
+
+    return length;
+  }
+
+  /** PURPOSE: Return the number of actions leading to the lock position of
+   *  the given index, including the final DROP.
+   *
+   *  @require (1) index < getCount()  */
+  public int getPathLength(int index) {
+    int length = 1;
+    for (int state = this.lockFrom[index]; this.from[state] >= 0;
+         state = this.from[state]) {
+      length++;
+    }
+    return length;
+  }
+
+  /** PURPOSE: Return the lock position of the given index as a placement,
+   *  see TetrisSearch.encode().  Lock positions are in order of the length
+   *  of their path.
+   *
+   *  @require (1) index < getCount()  */
+  public int getPlacement(int index) {
+    return this.placements[index];
+  }
+
+  /** PURPOSE: Return the number of lock positions last found. */
+  public int getCount() {
+    return this.count;
+  }
+
+  /** PURPOSE: Return the type of the piece last enumerated. */
+  public int getType() {
+    return this.type;
+  }
+
+  /** PURPOSE: Pack the state of a piece into an int. */
+  public int getState(int rot, int row, int col) {
+    return (((rot * this.rows) + row) * this.cols) + col;
+  }
+
+  /** PURPOSE: Return the rotation of a packed state. */
+  private int getStateRotation(int state) {
+    return state / (this.rows * this.cols);
+  }
+
+  /** PURPOSE: Return the center row of a packed state. */
+  private int getStateRow(int state) {
+    return (state / this.cols) % this.rows;
+  }
+
+  /** PURPOSE: Return the center column of a packed state. */
+  private int getStateCol(int state) {
+    return state % this.cols;
+  }
+
+  /** PURPOSE: Return a key for the cells covered by a piece of the current
+   *  type, made of its shape and the top left corner of its cells.  */
+  private int getLockKey(int rot, int row, int col) {
+    return this.getState(SHAPE[this.type][rot], row + TOP[this.type][rot],
+                         col + LEFT[this.type][rot]);
+  }
+
+  /** PURPOSE: Mark a state as visited, and how it was reached. */
+  private void visit(int state, int previous, int move) {
+    this.visited[state >> 6] |= 1L << state;
+    this.from[state] = previous;
+    this.action[state] = (byte)move;
+  }
+
+  /** PURPOSE: Return whether a state has been visited. */
+  private boolean isVisited(int state) {
+    return (this.visited[state >> 6] & (1L << state)) != 0;
+  }
+
+  /** PURPOSE: Make sure the arrays are sized for the given board. */
+  private void prepare(int rows, int cols) {
+    if (rows == this.rows && cols == this.cols) return;
+
+    int states = TetrisPiece.ROTATIONS * rows * cols;
+    this.rows = rows;
+    this.cols = cols;
+    this.visited = new long[(states + 63) >> 6];
+    this.locked = new long[(states + 63) >> 6];
+    this.lockIndex = new int[states];
+    this.queue = new int[states];
+    this.from = new int[states];
+    this.action = new byte[states];
+    this.fit = new byte[states];
+    this.drop = new int[states];
+    this.placements = new int[states];
+    this.lockFrom = new int[states];
+  }
+
+  /** PURPOSE: Return whether two rotations of a type cover the same cells,
+   *  up to a shift.  */
+  private static boolean isSameShape(int type, int rot, int other) {
+    int dr = TOP[type][rot] - TOP[type][other];
+    int dc = LEFT[type][rot] - LEFT[type][other];
+
+    for (int cell = 0; cell < TetrisPiece.SIZE; cell++) {
+      boolean found = false;
+      for (int match = 0; match < TetrisPiece.SIZE; match++) {
+        if (TetrisPiece.getCellRow(type, rot, cell) ==
+            TetrisPiece.getCellRow(type, other, match) + dr &&
+            TetrisPiece.getCellCol(type, rot, cell) ==
+            TetrisPiece.getCellCol(type, other, match) + dc) {
+          found = true;
+          break;
+        }
+      }
+      if (!found) return false;
+    }
+
+    return true;
+  }
+
+}
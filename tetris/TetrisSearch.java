@@ -0,0 +1,535 @@
+package tetris;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  PURPOSE: This class defines the placement search used by the AI player.
+ *
+ *  NOTES: The search drops the current piece in every column under every
+ *  rotation, and scores each resulting board.  With a depth greater than
+ *  one, it also looks ahead: since the following pieces are not known, the
+ *  score of a board is the average, over every piece type, of the best
+ *  placement of that type on it.  The number of boards to score grows by a
+ *  factor of (TYPES x placements) with every extra level, so when there is
+ *  enough work the placements of the current piece are split across a
+ *  fork/join pool, in a fixed number of tasks per worker thread.  Each task
+ *  simulates on its own scratch boards and keeps its own best result, so
+ *  the workers share nothing they can change.  Small searches run on the
+ *  calling thread instead, on scratch boards of the search.  The tasks and
+ *  the scratch boards are kept from search to search, so once they are
+ *  sized for the board and the depth, a search does not allocate.
+ *
+ *  Under a deadline, the search deepens one level at a time and keeps the
+ *  result of the deepest level it completed.  Every node checks the clock,
+ *  so a level that runs out of time is abandoned within microseconds.  The
+ *  first level is always completed, so there is always a placement to play.
+ *
+ *  A placement is packed into an int as its rotation, column and row, see
+ *  getRotation(), getCol() and getRow().
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisSearch {
+
+  // Shared, fixed values
+  public static final int HEIGHT = 0;  // Evaluation weight identifiers
+  public static final int LINES = 1;
+  public static final int HOLES = 2;
+  public static final int BUMPINESS = 3;
+  public static final int FEATURES = 4;
+
+  public static final double[] DEFAULT_WEIGHTS =
+    { -0.510066, 0.760666, -0.35663, -0.184483 };
+  public static final int NONE = -1;  // No placement found
+  public static final int START_ROWS = 2;  // Rows to drop before rotating
+
+  // Fixed values
+  private static final double LOSS = -1e9;  // Score when nothing fits
+  private static final int MIN_WORK = 20000;  // Boards worth going parallel
+  private static final int MIN_TASKS = 4;  // Tasks per worker thread
+
+  // Changeable values
+  private double[] weights;  // Weight of each feature in the evaluation
+  private int depth;  // Number of pieces to place, including the current one
+  private ForkJoinPool pool;  // Pool to split large searches across
+
+  private int[] candidates;  // Placements of the current piece
+  private Scratch scratch;  // Scratch space of the sequential path
+  private Task[] tasks;  // Parts of the parallel path, created when needed
+  private Split split;  // Runs the tasks on the pool
+  private double bestValue;  // Score of the last placement found
+
+  private long deadline;  // System.nanoTime() to stop at, 0 if none
+  private volatile boolean expired;  // Whether the deadline has passed
+  private int reached;  // Depth completed by the last deadline search
+
+  private long sequentialTime;  // Last timings of each path (ns)
+  private long parallelTime;
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new search with the given weights and depth. */
+  public TetrisSearch(double[] weights, int depth, ForkJoinPool pool) {
+    this.weights = new double[FEATURES];
+    System.arraycopy(weights, 0, this.weights, 0, FEATURES);
+    this.depth = Math.max(1, depth);
+    this.pool = pool;
+    this.candidates = new int[TetrisPiece.ROTATIONS * TetrisGame.MAX_COLS];
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisSearch(double[] weights, int depth) {
+    this(weights, depth, ForkJoinPool.commonPool());
+  }
+
+  /** Alternate constructor #2. */
+  public TetrisSearch() {
+    this(DEFAULT_WEIGHTS, 1);
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Return the best placement for a piece of the given type,
+   *  starting from the given row, or NONE if it fits nowhere.  The parallel
+   *  path is only taken when there is enough work to pay for it.  */
+  public int search(TetrisBoard board, int type, int row) {
+    return this.score(board, type, this.getCandidates(board, type, row));
+  }
+
+  /** PURPOSE: Score the first count candidates, on the fork/join pool if
+   *  there is enough work to pay for it.  */
+  private int score(TetrisBoard board, int type, int count) {
+    long work = count;
+    for (int level = 1; level < this.depth; level++) {
+      work *= TetrisPiece.TYPES * count;
+    }
+
+    if (work >= MIN_WORK && this.pool.getParallelism() > 1) {
+      return this.scoreParallel(board, type, count);
+    }
+    return this.scoreSequential(board, type, count);
+  }
+
+  /** PURPOSE: Return the best placement for a piece of the given type, as
+   *  search() does, but deepen one level at a time up to the depth of the
+   *  search and stop at the given System.nanoTime().  The placement found by
+   *  the deepest completed level is returned, see getReached().  */
+  public int search(TetrisBoard board, int type, int row, long deadline) {
+    return this.deepen(board, type, this.getCandidates(board, type, row),
+                       deadline);
+  }
+
+  /** PURPOSE: Return the best placement among those found by the given
+   *  enumerator, as search() does with a deadline.  The candidates include
+   *  placements a straight drop cannot reach.  */
+  public int search(TetrisBoard board, TetrisReach reach, long deadline) {
+    int count = reach.getCount();
+    if (count > this.candidates.length) this.candidates = new int[count];
+    for (int index = 0; index < count; index++) {
+      this.candidates[index] = reach.getPlacement(index);
+    }
+    return this.deepen(board, reach.getType(), count, deadline);
+  }
+
+  /** PURPOSE: Score the first count candidates one level deeper at a time,
+   *  until the depth of the search or the deadline.  */
+  private int deepen(TetrisBoard board, int type, int count, long deadline) {
+    int limit = this.depth;
+    int best = NONE;
+    double value = LOSS;
+    this.reached = 0;
+
+    try {
+      for (int level = 1; level <= limit; level++) {
+        this.depth = level;
+        this.deadline = (level > 1) ? deadline : 0;  // Always finish one
+        this.expired = false;
+
+        int placement = this.score(board, type, count);
+        if (this.isExpired()) break;  // Incomplete, so keep the last level
+
+        best = placement;
+        value = this.bestValue;
+        this.reached = level;
+        if (best == NONE) break;  // Nothing fits at any depth
+      }
+    } finally {
+      this.depth = limit;
+      this.deadline = 0;
+    }
+
+    this.bestValue = value;
+    return best;
+  }
+
+  /** PURPOSE: Return whether the deadline of the current search has passed.
+   *  The first thread to notice tells the others.  */
+  private boolean isExpired() {
+    if (this.deadline == 0) return false;
+    if (!this.expired && System.nanoTime() - this.deadline >= 0) {
+      this.expired = true;
+    }
+    return this.expired;
+  }
+
+  /** PURPOSE: Search the placements on the calling thread only. */
+  public int searchSequential(TetrisBoard board, int type, int row) {
+    return this.scoreSequential(board, type,
+                                this.getCandidates(board, type, row));
+  }
+
+  /** PURPOSE: Search the placements on the fork/join pool. */
+  public int searchParallel(TetrisBoard board, int type, int row) {
+    return this.scoreParallel(board, type,
+                              this.getCandidates(board, type, row));
+  }
+
+  /** PURPOSE: Score the first count candidates on the calling thread. */
+  private int scoreSequential(TetrisBoard board, int type, int count) {
+    long start = System.nanoTime();
+    this.scratch = getScratch(this.scratch, board, this.depth);
+    Scratch scratch = this.scratch;
+    int bestIndex = -1;
+    this.bestValue = LOSS;
+
+    for (int index = 0; index < count; index++) {
+      int placement = this.candidates[index];
+      double value = this.expand(scratch, board, type, getRotation(placement),
+                                 getRow(placement), getCol(placement), 0, 0);
+      if (bestIndex < 0 || value > this.bestValue) {
+        bestIndex = index;
+        this.bestValue = value;
+      }
+    }
+
+    this.sequentialTime = System.nanoTime() - start;
+    return (bestIndex < 0) ? NONE : this.candidates[bestIndex];
+  }
+
+  /** PURPOSE: Score the first count candidates on the fork/join pool, in
+   *  equal parts, one per task.  */
+  private int scoreParallel(TetrisBoard board, int type, int count) {
+    long start = System.nanoTime();
+    int parts = this.pool.getParallelism() * MIN_TASKS;
+    if (this.tasks == null || this.tasks.length != parts) {
+      this.tasks = new Task[parts];
+      for (int num = 0; num < parts; num++) {
+        this.tasks[num] = new Task(this);
+      }
+      this.split = new Split(this.tasks);
+    }
+
+    for (int num = 0; num < parts; num++) {
+      this.tasks[num].prepare(board, type, (int)((long)count * num / parts),
+                              (int)((long)count * (num + 1) / parts));
+    }
+    this.split.reinitialize();
+    this.pool.invoke(this.split);
+    this.parallelTime = System.nanoTime() - start;
+
+    int bestIndex = -1;  // First of the best, as on the calling thread
+    this.bestValue = LOSS;
+    for (int num = 0; num < parts; num++) {
+      Task task = this.tasks[num];
+      if (task.bestIndex >= 0 &&
+          (bestIndex < 0 || task.bestValue > this.bestValue)) {
+        bestIndex = task.bestIndex;
+        this.bestValue = task.bestValue;
+      }
+    }
+    return (bestIndex < 0) ? NONE : this.candidates[bestIndex];
+  }
+
+  /** PURPOSE: List the placements of the current piece that fit on the
+   *  board from the given row, and return how many there are.  */
+  private int getCandidates(TetrisBoard board, int type, int row) {
+    int count = 0;
+
+    for (int rot = 0; rot < TetrisPiece.ROTATIONS; rot++) {
+      for (int col = 0; col < board.getWidth(); col++) {
+        int start = getStartRow(board, type, rot, row, col);
+        if (start >= 0) {
+          this.candidates[count] = encode(rot, start, col);
+          count++;
+        }
+      }
+    }
+
+    return count;
+  }
+
+  /** PURPOSE: Run the same search on both paths, the given number of times
+   *  each, and return how many times faster the parallel path was.  */
+  public double measureSpeedup(TetrisBoard board, int type, int runs) {
+    long sequential = 0;
+    long parallel = 0;
+
+    for (int run = 0; run < runs; run++) {
+      this.searchSequential(board, type, 0);
+      sequential += this.sequentialTime;
+      this.searchParallel(board, type, 0);
+      parallel += this.parallelTime;
+    }
+
+    return (parallel > 0) ? (double)sequential / parallel : 0;
+  }
+
+  /** PURPOSE: Return the score of the last placement found. */
+  public double getValue() {
+    return this.bestValue;
+  }
+
+  /** PURPOSE: Return the depth completed by the last search with a
+   *  deadline.  */
+  public int getReached() {
+    return this.reached;
+  }
+
+  /** PURPOSE: Return whether the last search with a deadline ran out of
+   *  time before reaching its full depth.  */
+  public boolean isTimedOut() {
+    return this.expired;
+  }
+
+  /** PURPOSE: Return the time the last sequential search took, in ns. */
+  public long getSequentialTime() {
+    return this.sequentialTime;
+  }
+
+  /** PURPOSE: Return the time the last parallel search took, in ns. */
+  public long getParallelTime() {
+    return this.parallelTime;
+  }
+
+  /** PURPOSE: Return the number of pieces placed by each search. */
+  public int getDepth() {
+    return this.depth;
+  }
+
+  /** PURPOSE: Set the number of pieces placed by each search. */
+  public void setDepth(int depth) {
+    this.depth = Math.max(1, depth);
+  }
+
+  /** PURPOSE: Return the weights of the evaluation features. */
+  public double[] getWeights() {
+    return this.weights;
+  }
+
+  /** PURPOSE: Set the weights of the evaluation features. */
+  public void setWeights(double[] weights) {
+    System.arraycopy(weights, 0, this.weights, 0, FEATURES);
+  }
+
+  /** PURPOSE: Return the best score over every placement of a piece of the
+   *  given type on the board, looking ahead to the deeper levels.  */
+  private double best(Scratch scratch, TetrisBoard board, int type,
+                      int level, int cleared) {
+    double best = LOSS;
+    if (this.isExpired()) return best;  // The result will be thrown away
+
+    for (int rot = 0; rot < TetrisPiece.ROTATIONS; rot++) {
+      for (int col = 0; col < board.getWidth(); col++) {
+        int row = getStartRow(board, type, rot, 0, col);
+        if (row < 0) continue;
+
+        double value = this.expand(scratch, board, type, rot, row, col,
+                                   level, cleared);
+        if (value > best) best = value;
+      }
+    }
+
+    return best;
+  }
+
+  /** PURPOSE: Drop a piece on a copy of the board and return the score of
+   *  the result.  Below the last level, that is the average over every piece
+   *  type of the best placement of the next piece.  */
+  private double expand(Scratch scratch, TetrisBoard board, int type,
+                        int rot, int row, int col, int level, int cleared) {
+    TetrisBoard next = scratch.boards[level];
+    next.copyFrom(board);
+
+    int drop = TetrisPiece.getDropRow(next, type, rot, row, col);
+    TetrisPiece.place(next, type, rot, drop, col);
+    cleared += next.clearLines();
+
+    if (level + 1 >= this.depth) {
+      return evaluate(this.weights, next, cleared, scratch.heights);
+    }
+
+    double total = 0;
+    for (int t = 0; t < TetrisPiece.TYPES; t++) {
+      total += this.best(scratch, next, t, level + 1, cleared);
+    }
+    return total / TetrisPiece.TYPES;
+  }
+
+  /** PURPOSE: Return the given scratch space if it is sized for the given
+   *  board and depth, or else a new one that is.  */
+  private static Scratch getScratch(Scratch scratch, TetrisBoard board,
+                                    int depth) {
+    if (scratch == null || scratch.boards.length < depth ||
+        scratch.heights.length != board.getWidth() ||
+        scratch.boards[0].getHeight() != board.getHeight()) {
+      return new Scratch(board.getHeight(), board.getWidth(), depth);
+    }
+    return scratch;
+  }
+
+  /** PURPOSE: Score a board by its features: the higher, the better.  The
+   *  heights array is filled with the height of each column.  The board
+   *  keeps its heights and holes up to date, so this never scans it.  */
+  public static double evaluate(double[] weights, TetrisBoard board,
+                                int cleared, int[] heights) {
+    int cols = board.getWidth();
+    int holes = board.getHoles();
+    int height = 0;
+    int bumpiness = 0;
+
+    for (int c = 0; c < cols; c++) {
+      heights[c] = board.getColumnHeight(c);
+      height += heights[c];
+      if (c > 0) bumpiness += Math.abs(heights[c] - heights[c - 1]);
+    }
+
+    return (weights[HEIGHT] * height) +
+           (weights[LINES] * cleared) +
+           (weights[HOLES] * holes) +
+           (weights[BUMPINESS] * bumpiness);
+  }
+
+  /** PURPOSE: Return the first row at or just below the given one in which
+   *  the piece fits, or -1 if there is none.  Rotations near the top of the
+   *  board only become possible once the piece has dropped a row or two.  */
+  public static int getStartRow(TetrisBoard board, int type, int rot,
+                                int row, int col) {
+    for (int r = row; r <= row + START_ROWS && r < board.getHeight(); r++) {
+      if (TetrisPiece.fits(board, type, rot, r, col)) return r;
+    }
+    return -1;
+  }
+
+  /** PURPOSE: Pack a placement into an int. */
+  public static int encode(int rotation, int row, int col) {
+    return rotation | (col << 2) | (row << 8);
+  }
+
+  /** PURPOSE: Return the rotation of a packed placement. */
+  public static int getRotation(int placement) {
+    return placement & 3;
+  }
+
+  /** PURPOSE: Return the column of a packed placement. */
+  public static int getCol(int placement) {
+    return (placement >> 2) & 63;
+  }
+
+  /** PURPOSE: Return the starting row of a packed placement. */
+  public static int getRow(int placement) {
+    return placement >> 8;
+  }
+
+  /** PURPOSE: Print how much faster the parallel search is on the largest
+   *  board, looking two pieces ahead.  */
+  public static void main(String[] args) {
+    TetrisBoard board = new TetrisBoard(TetrisGame.MAX_ROWS,
+                                        TetrisGame.MAX_COLS);
+    TetrisSearch search = new TetrisSearch(DEFAULT_WEIGHTS, 2);
+
+    search.measureSpeedup(board, 0, 3);  // Warm up
+    double speedup = search.measureSpeedup(board, 0, 5);
+    System.out.println("Threads: " + search.pool.getParallelism() +
+                       ", sequential: " + search.sequentialTime / 1000000 +
+                       " ms, parallel: " + search.parallelTime / 1000000 +
+                       " ms, speedup: " + speedup);
+  }
+
+/*** Nested classes ***/
+
+  /** PURPOSE: Scratch boards and column heights used by one thread at a
+   *  time.  */
+  private static class Scratch {
+
+    private TetrisBoard[] boards;  // One board per level of the search
+    private int[] heights;
+
+    private Scratch(int rows, int cols, int depth) {
+      this.boards = new TetrisBoard[depth];
+      for (int level = 0; level < depth; level++) {
+        this.boards[level] = new TetrisBoard(rows, cols);
+      }
+      this.heights = new int[cols];
+    }
+
+  }
+
+  /** PURPOSE: Score a range of the candidate placements on scratch boards
+   *  of its own.  */
+  private static class Task extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private TetrisSearch search;
+    private TetrisBoard board;
+    private int type;
+    private int from;  // Range of candidates to score
+    private int to;
+    private Scratch scratch;  // Kept for the next search
+
+    private int bestIndex;  // Best candidate in the range
+    private double bestValue;
+
+    private Task(TetrisSearch search) {
+      this.search = search;
+    }
+
+    /** PURPOSE: Set the task up to score the given range of candidates. */
+    private void prepare(TetrisBoard board, int type, int from, int to) {
+      this.board = board;
+      this.type = type;
+      this.from = from;
+      this.to = to;
+      this.reinitialize();
+    }
+
+    protected void compute() {
+      this.scratch = getScratch(this.scratch, this.board, this.search.depth);
+      this.bestIndex = -1;
+      this.bestValue = LOSS;
+
+      for (int index = this.from; index < this.to; index++) {
+        int placement = this.search.candidates[index];
+        double value = this.search.expand(this.scratch, this.board, this.type,
+                                          getRotation(placement),
+                                          getRow(placement),
+                                          getCol(placement), 0, 0);
+        if (this.bestIndex < 0 || value > this.bestValue) {
+          this.bestIndex = index;
+          this.bestValue = value;
+        }
+      }
+    }
+
+  }
+
+  /** PURPOSE: Run every task of a search, forking all but the first. */
+  private static class Split extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private Task[] tasks;
+
+    private Split(Task[] tasks) {
+      this.tasks = tasks;
+    }
+
+    protected void compute() {
+      invokeAll(this.tasks);
+    }
+
+  }
+
+}
@@ -0,0 +1,127 @@
+package tetris;
+
+import java.awt.Graphics;
+
+/**
+ *  PURPOSE: This class defines a picture of a game at one moment: its board,
+ *  active piece included, and its lines, score and level, as displayed.
+ *
+ *  NOTES: The thread running the game copies the engine into a snapshot and
+ *  publishes it, and the thread painting the window displays it, while the
+ *  game moves on in the engine.  Once published, a snapshot is not changed
+ *  again until the painter has handed it back, so the painter never sees a
+ *  board halfway through a move.  Copying into the same snapshot over and
+ *  over allocates nothing, unless the size of the board changes.  The cells
+ *  changed in the game since the last copy are marked dirty on the copy of
+ *  the board.  A snapshot replacing one the painter never took also keeps
+ *  the changes of that one, see addChanges(), so the dirty cells are always
+ *  those changed since the last snapshot the painter took.  Likewise, a
+ *  snapshot knows when the oldest input it is the first to show was given,
+ *  so the painter can measure the time from a keystroke to the screen.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisSnapshot {
+
+  // Changeable values
+  private TetrisBoard board;  // Copy of the board of the game
+  private int lines;  // Totals of the game
+  private int score;
+  private int level;
+  private boolean over;  // Whether the game had ended
+  private boolean input;  // Whether input not shown before is shown
+  private long given;  // When the oldest of that input was given, in ns
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new snapshot of the given game. */
+  public TetrisSnapshot(TetrisEngine engine) {
+    this.copyFrom(engine);
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Copy the current state of the given game into the snapshot.
+   *  Only the thread running the game may call this, and only on a
+   *  snapshot it has not published.  */
+  public void copyFrom(TetrisEngine engine) {
+    TetrisBoard other = engine.getBoard();
+    if (this.board == null || this.board.getHeight() != other.getHeight() ||
+        this.board.getWidth() != other.getWidth()) {
+      this.board = new TetrisBoard(other.getHeight(), other.getWidth());
+    }
+
+    this.board.copyAllFrom(other);
+    other.clearDirty();  // The changes travel with the snapshot now
+    this.lines = engine.getLines();
+    this.score = engine.getScore();
+    this.level = engine.getLevel();
+    this.over = engine.isOver();
+    this.input = false;
+  }
+
+  /** PURPOSE: Note that the snapshot shows input given at the given time,
+   *  in ns, keeping the oldest.  */
+  public void addInput(long time) {
+    if (!this.input || time - this.given < 0) this.given = time;
+    this.input = true;
+  }
+
+  /** PURPOSE: Add the changes of a snapshot taken earlier to those of this
+   *  one, when the earlier one may never be displayed.  */
+  public void addChanges(TetrisSnapshot other) {
+    if (other.board.getHeight() == this.board.getHeight() &&
+        other.board.getWidth() == this.board.getWidth()) {
+      this.board.addChanges(other.board);
+    }  // Else this board is new, and displayed in full anyway
+    if (other.input) this.addInput(other.given);
+  }
+
+  /** PURPOSE: Display the snapshot on the specified window, as laid out
+   *  by the given view.  */
+  public void displayOn(Graphics g, TetrisView view, int width, int height) {
+    view.displayOn(g, this.board, width, height, this.lines, this.score,
+                   this.level);
+  }
+
+  /** PURPOSE: Return the copy of the board. */
+  public TetrisBoard getBoard() {
+    return this.board;
+  }
+
+  /** PURPOSE: Get the line count. */
+  public int getLines() {
+    return this.lines;
+  }
+
+  /** PURPOSE: Get the score count. */
+  public int getScore() {
+    return this.score;
+  }
+
+  /** PURPOSE: Get the level count. */
+  public int getLevel() {
+    return this.level;
+  }
+
+  /** PURPOSE: Return whether the game was over. */
+  public boolean isOver() {
+    return this.over;
+  }
+
+  /** PURPOSE: Return whether the snapshot shows input given since the
+   *  snapshot displayed before.  */
+  public boolean hasInput() {
+    return this.input;
+  }
+
+  /** PURPOSE: Return when the oldest input first shown by the snapshot was
+   *  given, in ns, as System.nanoTime() returned it.
+   *
+   *  @require (1) this.hasInput()  */
+  public long getInput() {
+    return this.given;
+  }
+
+}
@@ -0,0 +1,334 @@
+package tetris;
+
+import java.util.Random;
+
+/**
+ *  PURPOSE: This class defines a solver that empties a board completely,
+ *  a perfect clear, with a known sequence of pieces.
+ *
+ *  NOTES: The solver fixes the number of rows to clear first, the lowest
+ *  height above the stack whose empty cells a whole number of pieces can
+ *  fill, and then searches depth first through the placements TetrisReach
+ *  finds for each piece in turn, keeping every piece below that height.
+ *  Rows only clear when full, and the cells of a column never move to
+ *  another column, so the number of empty cells left in each column is
+ *  unchanged by clears.  That gives cheap ways to tell a board cannot be
+ *  emptied, before trying any piece on it:
+ *
+ *  (1) The empty cells need exactly (empty / 4) more pieces, which must be
+ *      in the sequence.
+ *  (2) A column with no empty cells is a wall no piece can cross, so the
+ *      empty cells on each side of it must come in multiples of four.
+ *  (3) Each piece fills a fixed difference of cells in even and odd
+ *      columns, up to its sign, depending on its rotation.  The difference
+ *      left on the board must be covered by the pieces to come, and where
+ *      their rotations do not allow both parities, with the right parity.
+ *
+ *  Boards that fail anyway are remembered in a transposition table keyed by
+ *  their hash, the piece to place and the height, so no board is searched
+ *  twice.  Small wells solve in milliseconds.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisSolver {
+
+  // Shared, fixed values
+  public static final int NONE = -1;  // No solution
+
+  // Fixed values
+  private static final int EVEN = 0;  // Parity identifiers
+  private static final int ODD = 1;
+  private static final int ANY = 2;
+
+  private static final long INDEX_KEY = 0x9E3779B97F4A7C15L;  // Key mixing
+  private static final long HEIGHT_KEY = 0xC2B2AE3D27D4EB4FL;
+
+  // Half the largest column difference each type can fill, and its parity
+  private static final int[] SHIFT = new int[TetrisPiece.TYPES];
+  private static final int[] PARITY = new int[TetrisPiece.TYPES];
+
+  static {
+    for (int type = 0; type < TetrisPiece.TYPES; type++) {
+      boolean even = false;
+      boolean odd = false;
+
+      for (int rot = 0; rot < TetrisPiece.ROTATIONS; rot++) {
+        int diff = 0;
+        for (int cell = 0; cell < TetrisPiece.SIZE; cell++) {
+          int col = TetrisPiece.getCellCol(type, rot, cell);
+          diff += ((col & 1) == 0) ? 1 : -1;
+        }
+
+        SHIFT[type] = Math.max(SHIFT[type], Math.abs(diff) / 2);
+        if (((diff / 2) & 1) == 0) even = true;
+        else odd = true;
+      }
+
+      PARITY[type] = (even && odd) ? ANY : (odd ? ODD : EVEN);
+    }
+  }
+
+  // Changeable values
+  private TetrisTable table;  // Boards known not to empty
+  private TetrisBoard[] boards;  // Board before each piece of the sequence
+  private TetrisReach[] reaches;  // Placements of each piece
+  private int[] empty;  // Empty cells in each column of the target rows
+  private int[] types;  // The known sequence of pieces
+  private int count;
+
+  private int[] solution;  // Placements that empty the board
+  private int length;  // Number of pieces they use
+
+  private long nodes;  // Boards searched by the last solve
+  private long pruned;  // Boards cut off without trying a piece
+  private long elapsed;  // Duration of the last solve (ns)
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new solver with the given transposition table. */
+  public TetrisSolver(TetrisTable table) {
+    this.table = table;
+    this.boards = new TetrisBoard[0];
+    this.reaches = new TetrisReach[0];
+    this.solution = new int[0];
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisSolver() {
+    this(new TetrisTable());
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Find placements for the first pieces of the given sequence
+   *  that empty the board, using count pieces at most.  Return how many
+   *  pieces they use, see getPlacement(), or NONE if there are none.  */
+  public int solve(TetrisBoard board, int[] types, int count) {
+    long start = System.nanoTime();
+    this.count = Math.min(count, types.length);
+    this.types = types;
+    this.prepare(board);
+    this.boards[0].copyFrom(board);
+    this.table.clear();
+    this.nodes = 0;
+    this.pruned = 0;
+    this.length = NONE;
+
+    int rows = board.getHeight();
+    int cols = board.getWidth();
+    int filled = 0;
+    int height = 0;
+    for (int r = 0; r < rows; r++) {
+      int mask = board.getRowMask(r);
+      filled += Integer.bitCount(mask);
+      if (mask != 0 && height == 0) height = rows - r;
+    }
+
+    for (int h = height; h <= rows; h++) {
+      int cells = (cols * h) - filled;
+      if (cells % TetrisPiece.SIZE != 0) continue;
+      if (cells / TetrisPiece.SIZE > this.count) break;  // Higher needs more
+
+      if (this.search(0, h)) {
+        this.length = cells / TetrisPiece.SIZE;
+        break;
+      }
+    }
+
+    this.elapsed = System.nanoTime() - start;
+    return this.length;
+  }
+
+  /** PURPOSE: Return whether the board before the piece of the given index
+   *  can be emptied by clearing its bottom rows, filling in the solution if
+   *  so.  */
+  private boolean search(int index, int rows) {
+    if (rows == 0) return true;  // Every target row has cleared
+    this.nodes++;
+
+    TetrisBoard board = this.boards[index];
+    if (!this.isPossible(board, index, rows)) {
+      this.pruned++;
+      return false;
+    }
+
+    long key = board.getHash() ^ (index * INDEX_KEY) ^ (rows * HEIGHT_KEY);
+    double known = this.table.get(key);
+    if (known == known) return false;  // Not NaN, so known to fail
+
+    int type = this.types[index];
+    int top = board.getHeight() - rows;  // Highest row a piece may cover
+    TetrisReach reach = this.reaches[index];
+    reach.enumerate(board, type, 0, 0, TetrisPiece.getStartCol(board));
+
+    TetrisBoard next = this.boards[index + 1];
+    for (int num = 0; num < reach.getCount(); num++) {
+      int placement = reach.getPlacement(num);
+      int rot = TetrisSearch.getRotation(placement);
+      int row = TetrisSearch.getRow(placement);
+      int col = TetrisSearch.getCol(placement);
+      if (row + this.getTop(type, rot) < top) continue;
+
+      next.copyFrom(board);
+      TetrisPiece.place(next, type, rot, row, col);
+      if (this.search(index + 1, rows - next.clearLines())) {
+        this.solution[index] = placement;
+        return true;
+      }
+    }
+
+    this.table.put(key, 0, this.count - index);  // Keep the costly ones
+    return false;
+  }
+
+  /** PURPOSE: Return false if the board before the piece of the given index
+   *  clearly cannot be emptied by clearing its bottom rows.  See the notes
+   *  above for the tests.  */
+  private boolean isPossible(TetrisBoard board, int index, int rows) {
+    int cols = board.getWidth();
+    int full = (1 << cols) - 1;
+    int total = 0;
+
+    for (int c = 0; c < cols; c++) {
+      this.empty[c] = 0;
+    }
+    for (int r = board.getHeight() - rows; r < board.getHeight(); r++) {
+      int holes = ~board.getRowMask(r) & full;
+      total += Integer.bitCount(holes);
+      while (holes != 0) {
+        this.empty[Integer.numberOfTrailingZeros(holes)]++;
+        holes &= holes - 1;
+      }
+    }
+
+    int pieces = total / TetrisPiece.SIZE;  // (1) Enough pieces left
+    if (index + pieces > this.count) return false;
+
+    int region = 0;  // (2) Regions between full columns
+    int diff = 0;
+    for (int c = 0; c < cols; c++) {
+      if (this.empty[c] == 0) {
+        if (region % TetrisPiece.SIZE != 0) return false;
+        region = 0;
+      }
+      region += this.empty[c];
+      diff += ((c & 1) == 0) ? this.empty[c] : -this.empty[c];
+    }
+    if (region % TetrisPiece.SIZE != 0) return false;
+
+    if ((diff & 1) != 0) return false;  // (3) Column parity
+    int shift = 0;
+    int odd = 0;
+    boolean any = false;
+    for (int num = index; num < index + pieces; num++) {
+      int type = this.types[num];
+      shift += SHIFT[type];
+      if (PARITY[type] == ODD) odd++;
+      if (PARITY[type] == ANY) any = true;
+    }
+    if (Math.abs(diff / 2) > shift) return false;
+    return any || (((diff / 2) + odd) & 1) == 0;
+  }
+
+  /** PURPOSE: Return the row offset of the top cell of a piece of the given
+   *  type and rotation from its center.  */
+  private int getTop(int type, int rot) {
+    int top = TetrisPiece.SIZE;
+    for (int cell = 0; cell < TetrisPiece.SIZE; cell++) {
+      top = Math.min(top, TetrisPiece.getCellRow(type, rot, cell));
+    }
+    return top;
+  }
+
+  /** PURPOSE: Make sure there is a board and an enumerator for every piece,
+   *  matching the size of the board.  */
+  private void prepare(TetrisBoard board) {
+    int rows = board.getHeight();
+    int cols = board.getWidth();
+
+    if (this.boards.length < this.count + 1 ||
+        this.boards[0].getHeight() != rows ||
+        this.boards[0].getWidth() != cols) {
+      this.boards = new TetrisBoard[this.count + 1];
+      this.reaches = new TetrisReach[this.count];
+      for (int num = 0; num <= this.count; num++) {
+        this.boards[num] = new TetrisBoard(rows, cols);
+        if (num < this.count) this.reaches[num] = new TetrisReach(rows, cols);
+      }
+      this.solution = new int[this.count];
+      this.empty = new int[cols];
+    }
+  }
+
+  /** PURPOSE: Return the placement of the piece of the given index in the
+   *  last solution found, see TetrisSearch.encode().
+   *
+   *  @require (1) index < the length returned by solve()  */
+  public int getPlacement(int index) {
+    return this.solution[index];
+  }
+
+  /** PURPOSE: Return the number of boards searched by the last solve. */
+  public long getNodes() {
+    return this.nodes;
+  }
+
+  /** PURPOSE: Return the number of boards ruled out by the pruning tests in
+   *  the last solve.  */
+  public long getPruned() {
+    return this.pruned;
+  }
+
+  /** PURPOSE: Return the duration of the last solve, in ns. */
+  public long getElapsed() {
+    return this.elapsed;
+  }
+
+  /** PURPOSE: Return the transposition table of the solver. */
+  public TetrisTable getTable() {
+    return this.table;
+  }
+
+  /** PURPOSE: Solve random sequences on empty wells of a few sizes, and
+   *  print how many could be emptied and how long it took.  The optional
+   *  arguments are the number of sequences and the random seed.  */
+  public static void main(String[] args) {
+    int runs = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+    Random rand = new Random((args.length > 1) ? Long.parseLong(args[1]) : 0);
+    int[][] sizes = { { 6, 4 }, { 8, 4 }, { 10, 6 } };  // Rows, cols
+    TetrisSolver solver = new TetrisSolver();
+
+    for (int size = 0; size < sizes.length; size++) {
+      TetrisBoard board = new TetrisBoard(sizes[size][0], sizes[size][1]);
+      int[] types = new int[10];
+      int solved = 0;
+      long nodes = 0;
+      long time = 0;
+      long worst = 0;
+
+      for (int run = 0; run < runs; run++) {
+        for (int num = 0; num < types.length; num++) {
+          types[num] = rand.nextInt(TetrisPiece.TYPES);
+        }
+        board.clear();  // Start from a single piece at the bottom
+        int type = rand.nextInt(TetrisPiece.TYPES);
+        int col = TetrisPiece.getStartCol(board);
+        TetrisPiece.place(board, type, 0,
+                          TetrisPiece.getDropRow(board, type, 0, 1, col), col);
+
+        if (solver.solve(board, types, types.length) > 0) solved++;
+        nodes += solver.getNodes();
+        time += solver.getElapsed();
+        worst = Math.max(worst, solver.getElapsed());
+      }
+
+      System.out.println(sizes[size][0] + "x" + sizes[size][1] + ": " +
+                         solved + "/" + runs + " solved, " +
+                         (nodes / runs) + " boards, " +
+                         (time / runs / 1000) + " us average, " +
+                         (worst / 1000) + " us worst");
+    }
+  }
+
+}
@@ -0,0 +1,296 @@
+package tetris;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  PURPOSE: This class defines a bounded transposition table, caching the
+ *  evaluation of boards the AI has already scored, that any number of
+ *  threads can share.
+ *
+ *  NOTES: Boards are keyed by their Zobrist hash.  The entries live outside
+ *  the Java heap, in direct buffers of up to a gigabyte each, so even a
+ *  table of several gigabytes adds nothing for the garbage collector to
+ *  scan.  Direct buffers count against -XX:MaxDirectMemorySize, which is
+ *  the size of the heap unless set, so large tables need it raised.
+ *
+ *  Each entry is two longs, and four entries make a bucket of 64 bytes, one
+ *  cache line.  A key maps to a single bucket by its low bits, so an entry
+ *  only needs to keep the rest of the key, which leaves the low byte free
+ *  for the depth the value was searched to:
+ *
+ *    check:  ((key & ~0xFF) | depth) ^ data
+ *    data:   the value, as Double.doubleToRawLongBits()
+ *
+ *  Reads and writes take no locks.  A thread writing an entry at the same
+ *  time as another one reads it can leave the two longs mismatched, but
+ *  then the check no longer matches the key, so the reader sees a miss
+ *  rather than a wrong value.  A new entry goes in the slot already holding
+ *  its key, else an empty slot, else the slot searched to the smallest
+ *  depth, unless every entry in the bucket was searched deeper than the
+ *  new one.  Keys whose bits above the low byte are all 0, which no board
+ *  hashes to in practice, mark empty slots and are never cached.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisTable {
+
+  // Shared, fixed values
+  public static final int DEFAULT_CAPACITY = 1 << 16;  // Entries
+  public static final int ENTRY = 16;  // Bytes per entry
+  public static final int MAX_DEPTH = 0xFF;
+
+  // Fixed values
+  private static final int WAYS = 4;  // Entries per bucket
+  private static final int MIN_BUCKETS = 256;  // The low byte is implied
+  private static final int SEGMENT_BITS = 26;  // 2^26 entries per buffer
+  private static final long KEY_MASK = ~0xFFL;
+
+  // Changeable values
+  private ByteBuffer[] segments;  // The entries, a gigabyte at a time
+  private long capacity;  // Number of entries
+  private long mask;  // Buckets - 1, for picking a bucket
+
+  private LongAdder hits;  // Statistics since the last clear
+  private LongAdder misses;
+  private LongAdder collisions;  // Puts finding other keys in every slot
+  private LongAdder overwrites;  // Entries replaced by a different key
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new table with room for the given number of
+   *  entries, rounded up to a power of two.  A table of n entries takes
+   *  (n * ENTRY) bytes outside the heap.  */
+  public TetrisTable(long capacity) {
+    long buckets = Math.max(MIN_BUCKETS, (capacity + WAYS - 1) / WAYS);
+    buckets = Long.highestOneBit(buckets - 1) << 1;
+    this.capacity = buckets * WAYS;
+    this.mask = buckets - 1;
+
+    long segment = 1L << SEGMENT_BITS;
+    int count = (int)((this.capacity + segment - 1) / segment);
+    this.segments = new ByteBuffer[count];
+    for (int num = 0; num < count; num++) {
+      long entries = Math.min(segment, this.capacity - (num * segment));
+      this.segments[num] = ByteBuffer.allocateDirect((int)(entries * ENTRY))
+                                     .order(ByteOrder.nativeOrder());
+    }
+
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.collisions = new LongAdder();
+    this.overwrites = new LongAdder();
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisTable() {
+    this(DEFAULT_CAPACITY);
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Return the cached value for the given key, or NaN if it is not
+   *  in the table.  */
+  public double get(long key) {
+    return this.get(key, 0);
+  }
+
+  /** PURPOSE: Return the cached value for the given key, if it was searched
+   *  to the given depth or deeper, or NaN if there is none.  */
+  public double get(long key, int depth) {
+    long stored = key & KEY_MASK;
+    if (stored != 0) {
+      long entry = this.getBucket(key);
+      ByteBuffer segment = this.getSegment(entry);
+      int offset = this.getOffset(entry);
+
+      for (int way = 0; way < WAYS; way++, offset += ENTRY) {
+        long check = segment.getLong(offset);
+        long data = segment.getLong(offset + 8);
+        long found = check ^ data;
+        if ((found & KEY_MASK) == stored && (found & MAX_DEPTH) >= depth) {
+          this.hits.increment();
+          return Double.longBitsToDouble(data);
+        }
+      }
+    }
+
+    this.misses.increment();
+    return Double.NaN;
+  }
+
+  /** PURPOSE: Cache a value for the given key. */
+  public void put(long key, double value) {
+    this.put(key, value, 0);
+  }
+
+  /** PURPOSE: Cache a value for the given key, searched to the given depth,
+   *  replacing a shallower entry of its bucket if it is full.  */
+  public void put(long key, double value, int depth) {
+    long stored = key & KEY_MASK;
+    if (stored == 0) return;
+    depth = Math.max(0, Math.min(MAX_DEPTH, depth));
+
+    long entry = this.getBucket(key);
+    ByteBuffer segment = this.getSegment(entry);
+    int base = this.getOffset(entry);
+    int first = (int)(key >>> 62);  // Spread ties across the bucket
+    int target = -1;
+    int targetDepth = MAX_DEPTH + 1;
+    boolean replace = false;
+
+    for (int num = 0; num < WAYS; num++) {
+      int offset = base + (((first + num) & (WAYS - 1)) * ENTRY);
+      long found = segment.getLong(offset) ^ segment.getLong(offset + 8);
+      int foundDepth = (int)(found & MAX_DEPTH);
+
+      if ((found & KEY_MASK) == stored) {  // Update the key in place
+        if (foundDepth > depth) return;
+        target = offset;
+        replace = false;
+        break;
+      } else if (found == 0) {  // Empty
+        if (targetDepth >= 0) {
+          target = offset;
+          targetDepth = -1;
+          replace = false;
+        }
+      } else if (foundDepth < targetDepth) {
+        target = offset;
+        targetDepth = foundDepth;
+        replace = true;
+      }
+    }
+
+    if (replace) {
+      this.collisions.increment();
+      if (targetDepth > depth) return;  // Keep the deeper entries
+      this.overwrites.increment();
+    }
+
+    long data = Double.doubleToRawLongBits(value);
+    segment.putLong(target + 8, data);
+    segment.putLong(target, (stored | depth) ^ data);
+  }
+
+  /** PURPOSE: Return the index of the first entry of the bucket for the
+   *  given key.  */
+  private long getBucket(long key) {
+    return (key & this.mask) * WAYS;
+  }
+
+  /** PURPOSE: Return the buffer holding the entry of the given index. */
+  private ByteBuffer getSegment(long entry) {
+    return this.segments[(int)(entry >>> SEGMENT_BITS)];
+  }
+
+  /** PURPOSE: Return the offset of the entry of the given index in its
+   *  buffer.  */
+  private int getOffset(long entry) {
+    return (int)(entry & ((1L << SEGMENT_BITS) - 1)) * ENTRY;
+  }
+
+  /** PURPOSE: Remove every entry and reset the statistics.  No other
+   *  thread may use the table meanwhile.  */
+  public void clear() {
+    for (int num = 0; num < this.segments.length; num++) {
+      ByteBuffer segment = this.segments[num];
+      for (int offset = 0; offset < segment.capacity(); offset += 8) {
+        segment.putLong(offset, 0);
+      }
+    }
+    this.hits.reset();
+    this.misses.reset();
+    this.collisions.reset();
+    this.overwrites.reset();
+  }
+
+  /** PURPOSE: Return the number of entries in the table. */
+  public long getCapacity() {
+    return this.capacity;
+  }
+
+  /** PURPOSE: Return the size of the table, in bytes. */
+  public long getBytes() {
+    return this.capacity * ENTRY;
+  }
+
+  /** PURPOSE: Return the number of lookups that found their key. */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /** PURPOSE: Return the number of lookups that did not find their key. */
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /** PURPOSE: Return the number of entries that found their bucket full of
+   *  other keys, whether they replaced one or not.  */
+  public long getCollisions() {
+    return this.collisions.sum();
+  }
+
+  /** PURPOSE: Return the number of entries replaced by a different key. */
+  public long getOverwrites() {
+    return this.overwrites.sum();
+  }
+
+  /** PURPOSE: Return the fraction of lookups that found their key. */
+  public double getHitRate() {
+    long hits = this.getHits();
+    long total = hits + this.getMisses();
+    return (total > 0) ? (double)hits / total : 0;
+  }
+
+  /** PURPOSE: Fill a table of the given size in MB from every processor at
+   *  once, then read every key back, and print the statistics and rates.
+   *  The optional arguments are the size and the number of keys per
+   *  thread.  */
+  public static void main(String[] args) throws InterruptedException {
+    long mb = (args.length > 0) ? Long.parseLong(args[0]) : 256;
+    final int keys = (args.length > 1) ? Integer.parseInt(args[1]) : 4000000;
+    final TetrisTable table = new TetrisTable((mb << 20) / ENTRY);
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    long start = System.nanoTime();
+    final int[] wrong = new int[threads];
+    Thread[] workers = new Thread[threads];
+    for (int num = 0; num < threads; num++) {
+      final int id = num;
+      workers[num] = new Thread() {
+        public void run() {
+          long seed = 0x9E3779B97F4A7C15L * (id + 1);
+          for (int n = 0; n < keys; n++) {
+            long key = seed + (n * 0xC2B2AE3D27D4EB4FL);
+            key ^= key >>> 29;
+            table.put(key, key * 0.5, n & 7);
+          }
+          for (int n = 0; n < keys; n++) {
+            long key = seed + (n * 0xC2B2AE3D27D4EB4FL);
+            key ^= key >>> 29;
+            double value = table.get(key);
+            if (value == value && value != key * 0.5) wrong[id]++;
+          }
+        }
+      };
+      workers[num].start();
+    }
+    int errors = 0;
+    for (int num = 0; num < threads; num++) {
+      workers[num].join();
+      errors += wrong[num];
+    }
+    long elapsed = System.nanoTime() - start;
+
+    System.out.println("Table: " + (table.getBytes() >> 20) + " MB, " +
+                       threads + " threads, " +
+                       (elapsed / (2L * keys * threads)) + " ns/operation");
+    System.out.println("Hit rate: " + table.getHitRate() + ", collisions: " +
+                       table.getCollisions() + ", overwrites: " +
+                       table.getOverwrites() + ", wrong values: " + errors);
+  }
+
+}
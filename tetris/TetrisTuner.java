@@ -0,0 +1,463 @@
+package tetris;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *  PURPOSE: This class defines a genetic tuner for the weights of the AI
+ *  evaluation, scoring each candidate by the games it plays on its own.
+ *
+ *  NOTES: Every generation, each weight vector in the population plays the
+ *  same seeded games, headless, and is scored by the lines it clears, then
+ *  by its score.  The next generation keeps the best vectors as they are
+ *  and fills the rest with children: two parents are picked by tournament,
+ *  averaged in proportion to their lines, and sometimes mutated.  Only the
+ *  direction of a weight vector matters to the AI, so every vector is kept
+ *  at unit length.
+ *
+ *  The games run concurrently on a fork/join pool.  Each worker thread
+ *  plays with its own engine and AI, which are reused game after game, and
+ *  each game writes its result to its own slot, so the results do not
+ *  depend on which thread played what.  The random numbers of a generation
+ *  come from the seed and the generation number alone, so a run can be
+ *  saved after any generation and resumed with the very same results.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisTuner {
+
+  // Shared, fixed values
+  public static final String DEFAULT_FILE = "tetris.tuner";
+  public static final int DEFAULT_POPULATION = 24;
+  public static final int DEFAULT_GAMES = 8;  // Games per candidate
+  public static final int DEFAULT_PIECES = 500;  // Longest game
+  public static final int DEFAULT_GENERATIONS = 20;
+
+  // Fixed values
+  private static final int ELITES = 4;  // Best candidates kept as they are
+  private static final int TOURNAMENT = 4;  // Candidates per parent pick
+  private static final double MUTATION_RATE = 0.3;  // Chance per child
+  private static final double MUTATION = 0.2;  // Size of a mutation
+
+  private static final int MOVES = 2;  // AI actions per tick, as in the game
+  private static final int DELAY = 100;  // Delay the AI plans with (ms)
+
+  private static final int MAGIC = 0x54545231;  // "TTR1"
+  private static final int VERSION = 1;
+  private static final long MIX = 0x9E3779B97F4A7C15L;  // Seed mixing
+
+  // Engine and AI of each thread
+  private static final ThreadLocal<Player> PLAYERS =
+    new ThreadLocal<Player>();
+
+  // Changeable values
+  private long seed;  // Seed every random choice comes from
+  private int games;  // Games per candidate
+  private int pieces;  // Pieces per game at most
+  private ForkJoinPool pool;  // Pool to play the games on
+
+  private int generation;  // Number of generations evolved so far
+  private double[][] weights;  // The population
+  private long[] lines;  // Lines each game cleared, by candidate and game
+  private long[] scores;  // Score of each game
+  private double[] fitness;  // Lines per game of each candidate
+  private double[] rank;  // Fitness, with the score breaking ties
+  private boolean evaluated;  // Whether the population has been played
+
+  private double[] best;  // Best vector seen in any generation
+  private double bestLines;
+  private long elapsed;  // Duration of the last evaluation (ns)
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new tuner with a random population. */
+  public TetrisTuner(long seed, int population, int games, int pieces,
+                     ForkJoinPool pool) {
+    this.seed = seed;
+    this.games = games;
+    this.pieces = pieces;
+    this.pool = pool;
+    this.weights = new double[population][TetrisSearch.FEATURES];
+    this.allocate();
+
+    Random rand = this.getRandom(-1);
+    for (int num = 0; num < population; num++) {
+      for (int f = 0; f < TetrisSearch.FEATURES; f++) {
+        this.weights[num][f] = (rand.nextDouble() * 2) - 1;
+      }
+      normalize(this.weights[num]);
+    }
+  }
+
+  /** Alternate constructor #1. */
+  public TetrisTuner(long seed) {
+    this(seed, DEFAULT_POPULATION, DEFAULT_GAMES, DEFAULT_PIECES,
+         ForkJoinPool.commonPool());
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Play the games of every candidate and score them. */
+  public void evaluate() {
+    long start = System.nanoTime();
+    int population = this.weights.length;
+    int total = population * this.games;
+    int grain = Math.max(1, total / (this.pool.getParallelism() * 4));
+    this.pool.invoke(new Task(this, 0, total, grain));
+
+    for (int num = 0; num < population; num++) {
+      long sumLines = 0;
+      long sumScores = 0;
+      for (int game = 0; game < this.games; game++) {
+        sumLines += this.lines[(num * this.games) + game];
+        sumScores += this.scores[(num * this.games) + game];
+      }
+      this.fitness[num] = (double)sumLines / this.games;
+      this.rank[num] = this.fitness[num] +
+                       ((double)sumScores / this.games * 1e-9);
+
+      if (this.best == null || this.fitness[num] > this.bestLines) {
+        this.best = this.weights[num].clone();
+        this.bestLines = this.fitness[num];
+      }
+    }
+
+    this.evaluated = true;
+    this.elapsed = System.nanoTime() - start;
+  }
+
+  /** PURPOSE: Replace the population by the next generation, playing the
+   *  current one first if needed.  */
+  public void evolve() {
+    if (!this.evaluated) this.evaluate();
+
+    int population = this.weights.length;
+    Random rand = this.getRandom(this.generation);
+    int[] order = new int[population];  // Candidates from best to worst
+    for (int num = 0; num < population; num++) {
+      order[num] = num;
+    }
+    for (int num = 1; num < population; num++) {  // Stable insertion sort
+      int item = order[num];
+      int pos = num;
+      while (pos > 0 && this.rank[order[pos - 1]] < this.rank[item]) {
+        order[pos] = order[pos - 1];
+        pos--;
+      }
+      order[pos] = item;
+    }
+
+    double[][] next = new double[population][];
+    int elites = Math.min(ELITES, population);
+    for (int num = 0; num < elites; num++) {
+      next[num] = this.weights[order[num]];
+    }
+    for (int num = elites; num < population; num++) {
+      int mother = this.pick(rand);
+      int father = this.pick(rand);
+      double a = this.fitness[mother] + 1;
+      double b = this.fitness[father] + 1;
+
+      double[] child = new double[TetrisSearch.FEATURES];
+      for (int f = 0; f < TetrisSearch.FEATURES; f++) {
+        child[f] = (a * this.weights[mother][f]) +
+                   (b * this.weights[father][f]);
+      }
+      if (rand.nextDouble() < MUTATION_RATE) {
+        child[rand.nextInt(TetrisSearch.FEATURES)] +=
+          rand.nextGaussian() * MUTATION;
+      }
+      normalize(child);
+      next[num] = child;
+    }
+
+    this.weights = next;
+    this.generation++;
+    this.evaluated = false;
+  }
+
+  /** PURPOSE: Return the best of a few random candidates. */
+  private int pick(Random rand) {
+    int best = rand.nextInt(this.weights.length);
+    for (int num = 1; num < TOURNAMENT; num++) {
+      int other = rand.nextInt(this.weights.length);
+      if (this.rank[other] > this.rank[best]) best = other;
+    }
+    return best;
+  }
+
+  /** PURPOSE: Play one game of one candidate and record its result. */
+  private void play(int index) {
+    int candidate = index / this.games;
+    int game = index % this.games;
+
+    Player player = PLAYERS.get();
+    if (player == null) {
+      player = new Player();
+      PLAYERS.set(player);
+    }
+
+    player.ai.setWeights(this.weights[candidate]);
+    player.engine.setSeed(this.getGameSeed(game));
+    player.engine.reset(true);
+    TetrisEngine engine = player.engine;
+
+    int placed = 0;
+    while (!engine.isOver() && placed < this.pieces) {
+      if (engine.isLanded()) {
+        engine.tick();  // Lock the piece and add the next one
+        placed++;
+        continue;
+      }
+
+      engine.tick();  // Gravity, then the AI gets its moves
+      for (int num = 0; num < MOVES && !engine.isLanded(); num++) {
+        int action = player.ai.getMove(engine, DELAY);
+        if (action < 0) break;
+        engine.step(action);
+      }
+    }
+
+    this.lines[index] = engine.getLines();
+    this.scores[index] = engine.getScore();
+  }
+
+  /** PURPOSE: Return the seed of a game in the current generation. */
+  private long getGameSeed(int game) {
+    return (this.seed * MIX) ^ ((this.generation + 1) * (MIX >>> 1)) ^
+           (game * MIX * 31);
+  }
+
+  /** PURPOSE: Return the random numbers of the given generation. */
+  private Random getRandom(int generation) {
+    return new Random(this.seed ^ ((generation + 2) * MIX));
+  }
+
+  /** PURPOSE: Make room for the results of the population. */
+  private void allocate() {
+    int population = this.weights.length;
+    this.lines = new long[population * this.games];
+    this.scores = new long[population * this.games];
+    this.fitness = new double[population];
+    this.rank = new double[population];
+  }
+
+  /** PURPOSE: Write the state of the tuner to the given file, replacing it
+   *  only once the new state is completely written.  */
+  public void save(String path) throws IOException {
+    File temp = new File(path + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                                 new FileOutputStream(temp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(this.seed);
+      out.writeInt(this.games);
+      out.writeInt(this.pieces);
+      out.writeInt(this.generation);
+      out.writeInt(this.weights.length);
+      out.writeInt(TetrisSearch.FEATURES);
+      for (int num = 0; num < this.weights.length; num++) {
+        for (int f = 0; f < TetrisSearch.FEATURES; f++) {
+          out.writeDouble(this.weights[num][f]);
+        }
+      }
+      out.writeBoolean(this.best != null);
+      if (this.best != null) {
+        out.writeDouble(this.bestLines);
+        for (int f = 0; f < TetrisSearch.FEATURES; f++) {
+          out.writeDouble(this.best[f]);
+        }
+      }
+    } finally {
+      out.close();
+    }
+
+    File file = new File(path);
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Cannot replace " + path);
+    }
+    if (!temp.renameTo(file)) throw new IOException("Cannot write " + path);
+  }
+
+  /** PURPOSE: Read a tuner saved by save(), to resume it on the given
+   *  pool.  */
+  public static TetrisTuner load(String path, ForkJoinPool pool)
+    throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                             new FileInputStream(path)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(path + " is not a tuner checkpoint");
+      }
+      long seed = in.readLong();
+      int games = in.readInt();
+      int pieces = in.readInt();
+      int generation = in.readInt();
+      int population = in.readInt();
+      if (in.readInt() != TetrisSearch.FEATURES) {
+        throw new IOException(path + " has other evaluation features");
+      }
+
+      TetrisTuner tuner = new TetrisTuner(seed, population, games, pieces,
+                                          pool);
+      tuner.generation = generation;
+      for (int num = 0; num < population; num++) {
+        for (int f = 0; f < TetrisSearch.FEATURES; f++) {
+          tuner.weights[num][f] = in.readDouble();
+        }
+      }
+      if (in.readBoolean()) {
+        tuner.bestLines = in.readDouble();
+        tuner.best = new double[TetrisSearch.FEATURES];
+        for (int f = 0; f < TetrisSearch.FEATURES; f++) {
+          tuner.best[f] = in.readDouble();
+        }
+      }
+      return tuner;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** PURPOSE: Return the number of generations evolved so far. */
+  public int getGeneration() {
+    return this.generation;
+  }
+
+  /** PURPOSE: Return the weights of a candidate in the population. */
+  public double[] getWeights(int candidate) {
+    return this.weights[candidate];
+  }
+
+  /** PURPOSE: Return the lines per game of a candidate, once the
+   *  population has been played.  */
+  public double getFitness(int candidate) {
+    return this.fitness[candidate];
+  }
+
+  /** PURPOSE: Return the best weights seen so far, or null before the first
+   *  evaluation.  */
+  public double[] getBest() {
+    return this.best;
+  }
+
+  /** PURPOSE: Return the lines per game of the best weights seen so far. */
+  public double getBestLines() {
+    return this.bestLines;
+  }
+
+  /** PURPOSE: Return the duration of the last evaluation, in ns. */
+  public long getElapsed() {
+    return this.elapsed;
+  }
+
+  /** PURPOSE: Scale a vector to unit length. */
+  private static void normalize(double[] vector) {
+    double sum = 0;
+    for (int f = 0; f < vector.length; f++) {
+      sum += vector[f] * vector[f];
+    }
+    double length = Math.sqrt(sum);
+    if (length == 0) return;
+    for (int f = 0; f < vector.length; f++) {
+      vector[f] /= length;
+    }
+  }
+
+  /** PURPOSE: Run the tuner, resuming from the checkpoint file if there is
+   *  one, and save it after every generation.  The optional arguments are
+   *  the file, the number of generations to reach, and the seed of a new
+   *  run.  */
+  public static void main(String[] args) throws IOException {
+    String path = (args.length > 0) ? args[0] : DEFAULT_FILE;
+    int generations = (args.length > 1) ? Integer.parseInt(args[1]) :
+                                          DEFAULT_GENERATIONS;
+    long seed = (args.length > 2) ? Long.parseLong(args[2]) : 486;
+
+    TetrisTuner tuner;
+    if (new File(path).isFile()) {
+      tuner = load(path, ForkJoinPool.commonPool());
+      System.out.println("Resuming at generation " + tuner.generation);
+    } else {
+      tuner = new TetrisTuner(seed);
+    }
+
+    while (tuner.generation < generations) {
+      tuner.evaluate();
+      double[] best = tuner.getBest();
+      StringBuilder line = new StringBuilder();
+      line.append("Generation ").append(tuner.generation);
+      line.append(": best ").append(tuner.getBestLines()).append(" lines {");
+      for (int f = 0; f < best.length; f++) {
+        line.append((f > 0) ? ", " : " ").append(best[f]);
+      }
+      line.append(" }, ").append(tuner.elapsed / 1000000).append(" ms");
+      System.out.println(line);
+
+      tuner.evolve();
+      tuner.save(path);
+    }
+  }
+
+/*** Nested classes ***/
+
+  /** PURPOSE: Engine and AI owned by a single thread. */
+  private static class Player {
+
+    private TetrisAI ai;
+    private TetrisEngine engine;
+
+    private Player() {
+      // No look ahead, so thousands of games finish in reasonable time
+      this.ai = new TetrisAI(new TetrisSearch(TetrisSearch.DEFAULT_WEIGHTS,
+                                              1));
+      this.engine = new TetrisEngine();
+    }
+
+  }
+
+  /** PURPOSE: Play a range of the games, splitting it in two while it is
+   *  larger than the grain.  */
+  private static class Task extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private TetrisTuner tuner;
+    private int from;  // Range of games, by candidate and game
+    private int to;
+    private int grain;
+
+    private Task(TetrisTuner tuner, int from, int to, int grain) {
+      this.tuner = tuner;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    protected void compute() {
+      if (this.to - this.from > this.grain) {
+        int mid = (this.from + this.to) >>> 1;
+        invokeAll(new Task(this.tuner, this.from, mid, this.grain),
+                  new Task(this.tuner, mid, this.to, this.grain));
+        return;
+      }
+
+      for (int index = this.from; index < this.to; index++) {
+        this.tuner.play(index);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,371 @@
+package tetris;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.text.DecimalFormatSymbols;
+
+/**
+ *  PURPOSE: This class defines how a board is drawn on a window of a given
+ *  size: the well and its cells on the left, and the game status, commands
+ *  and controls on the right.
+ *
+ *  NOTES: The layout, from the size of a cell to the position of each table,
+ *  is only worked out again when the window or the board changes size.
+ *  Each cell is a tile, an image of its color with the grid line around it,
+ *  drawn the first time a cell of that color is displayed at that size and
+ *  copied onto the window from then on, so a cell takes one drawImage()
+ *  rather than a fill and five lines.  The text and tables on the right,
+ *  which never change, are drawn once per size into an image as well.  Only
+ *  the lines, score and level are drawn into the status table each time,
+ *  and the game over box, kept as an image too, when the game is over.  A
+ *  view keeps images, so each thread drawing boards needs its own.
+ *
+ *  @author Brenn Berliner, ARCH 486, Spring 2009
+ */
+
+public class TetrisView {
+
+  // Shared, fixed values
+  public static final int MAX_TILES = 16;  // Colors kept as tiles at once
+
+  // Fixed values
+  private static final int margin = 20;  // Borders of the window
+  private static final int innerMargin = 5;  // Borders of tables
+  private static final int textMargin = 15;  // Borders around text
+  private static final int sectionMargin = 25;  // Section breaks
+  private static final int valueMargin = 55;  // Labels before the values
+  private static final int minStretch = 135;  // Minimum width of the right
+  private static final Font TITLE_FONT = new Font("Times", Font.BOLD, 14);
+  private static final Font TEXT_FONT = new Font("Times", Font.PLAIN, 12);
+  private static final int STATUS_Y = (margin * 3) + (sectionMargin * 2) +
+                                      textMargin;  // Game status table
+  private static final int STATUS_HEIGHT = (innerMargin * 2) +
+                                           (textMargin * 3);
+
+  // Changeable values
+  private int width;  // Size of the window laid out
+  private int height;
+  private int rows;  // Size of the board laid out
+  private int cols;
+  private boolean grid;  // Whether the tiles show a grid
+  private int cell;  // Size of a square cell
+  private int wellWidth;  // Size of the playing field
+  private int wellHeight;
+  private int x;  // Left side of the tables
+  private int stretch;  // Width of the tables
+  private int bottom;  // Bottom of the fixed tables
+  private String size;  // Dimensions, as displayed
+
+  private Color[] colors;  // Colors with a tile, the first ones used
+  private BufferedImage[] tiles;  // Tile of each of those colors
+  private int count;  // Tiles drawn at this size
+  private BufferedImage fixed;  // Text and tables that never change
+  private BufferedImage ending;  // Game over box
+  private char[] digits;  // Room to format a number for display
+  private char separator;  // Digit grouping separator of the locale
+
+/*** CONSTRUCTOR(s) ***/
+
+  /** PURPOSE: Initialize a new view, laid out for no window yet. */
+  public TetrisView() {
+    this.colors = new Color[MAX_TILES];
+    this.tiles = new BufferedImage[MAX_TILES];
+    this.digits = new char[16];
+    this.separator = new DecimalFormatSymbols().getGroupingSeparator();
+  }
+
+/*** CUSTOM Methods ***/
+
+  /** PURPOSE: Display the board on the specified window.  Nothing is
+   *  allocated unless the window or board changed size, or a cell has a
+   *  new color.  */
+  public void displayOn(Graphics g, TetrisBoard board, int width,
+                        int height, int lines, int score, int level) {
+    this.layout(board, width, height);
+    Color origColor = g.getColor();
+
+    // Playing field
+    g.setColor(Color.BLACK);
+    g.fillRect(margin, margin * 2, this.wellWidth, this.wellHeight);
+    g.drawRect(margin, margin * 2, this.wellWidth, this.wellHeight);
+
+    // Cells, grid included
+    for (int r = 0; r < this.rows; r++) {
+      for (int c = 0; c < this.cols; c++) {
+        this.drawCell(g, board, r, c);
+      }
+    }
+
+    // Headers, commands, controls and dimensions
+    if (this.fixed == null) this.drawFixed();
+    g.drawImage(this.fixed, this.x, 0, null);
+
+    // Game status
+    this.drawStatus(g, lines, score, level);
+
+    // Game over
+    if (board.isFull()) {
+      if (this.ending == null) this.drawEnding();
+      g.drawImage(this.ending, this.x, this.bottom + sectionMargin, null);
+    }
+
+    g.setColor(origColor);
+  }
+
+  /** PURPOSE: Display only the cells of the board that changed since its
+   *  clearDirty() was last called, over the board as it was then, already
+   *  displayed at the same size.  */
+  public void displayChanges(Graphics g, TetrisBoard board, int width,
+                             int height) {
+    this.layout(board, width, height);
+    Color origColor = g.getColor();
+
+    for (int r = 0; r < this.rows; r++) {
+      for (int mask = board.getDirtyMask(r); mask != 0; mask &= mask - 1) {
+        this.drawCell(g, board, r, Integer.numberOfTrailingZeros(mask));
+      }
+    }
+
+    g.setColor(origColor);
+  }
+
+  /** PURPOSE: Display only the lines, score and level, over the board
+   *  already displayed at the same size.  */
+  public void displayStatus(Graphics g, TetrisBoard board, int width,
+                            int height, int lines, int score, int level) {
+    this.layout(board, width, height);
+    Color origColor = g.getColor();
+    g.setColor(Color.WHITE);
+    g.fillRect(this.x + valueMargin, STATUS_Y + 1,
+               this.stretch - valueMargin, STATUS_HEIGHT - 1);
+    this.drawStatus(g, lines, score, level);
+    g.setColor(origColor);
+  }
+
+  /** PURPOSE: Work out where everything goes for the given board and size
+   *  of window, unless it is already laid out for them, and forget the
+   *  images drawn for another size.  */
+  private void layout(TetrisBoard board, int width, int height) {
+    int rows = board.getHeight();
+    int cols = board.getWidth();
+    if (board.isGrid() != this.grid) {
+      this.grid = board.isGrid();
+      this.count = 0;  // The tiles show the grid
+    }
+    if (width == this.width && height == this.height &&
+        rows == this.rows && cols == this.cols && this.size != null) {
+      return;
+    }
+
+    if (rows != this.rows || cols != this.cols || this.size == null) {
+      this.size = rows + " Rows x " + cols + " Cols";
+    }
+    this.width = width;
+    this.height = height;
+    this.rows = rows;
+    this.cols = cols;
+
+    // Size of a square cell in relation to the window
+    int cell = (width - (margin * 3) - minStretch - 2) / cols;
+    int room = height - margin;
+    if (rows >= cols) {  // Use horizontal size computation by default
+      if (room - (margin * 2) - 2 < (cell * rows)) {  // Too tight
+        cell = (room - (margin * 2)) / rows;  // Use vertical size
+      }
+    }
+    this.cell = cell;
+
+    this.wellWidth = (cell * cols) + 2;
+    this.wellHeight = (cell * rows) + 2;
+    this.x = (margin * 2) + this.wellWidth;
+    this.stretch = Math.abs(width - (margin * 3) - this.wellWidth);
+    this.bottom = STATUS_Y + STATUS_HEIGHT +
+                  sectionMargin + (innerMargin * 2) + (textMargin * 4) +
+                  sectionMargin + (innerMargin * 2) + (textMargin * 6) +
+                  sectionMargin + (innerMargin * 2) + textMargin;
+
+    this.count = 0;
+    this.fixed = null;
+    this.ending = null;
+  }
+
+  /** PURPOSE: Draw the given cell of the board from the tile of its color,
+   *  drawing the tile first if there is none yet.  */
+  private void drawCell(Graphics g, TetrisBoard board, int row, int col) {
+    Color color = board.getColor(row, col);
+    int cellX = margin + (this.cell * col) + 1;
+    int cellY = (margin * 2) + (this.cell * row) + 1;
+
+    for (int num = 0; num < this.count; num++) {
+      if (this.colors[num] == color) {
+        g.drawImage(this.tiles[num], cellX, cellY, null);
+        return;
+      }
+    }
+
+    if (this.count < MAX_TILES) {
+      this.colors[this.count] = color;
+      this.tiles[this.count] = this.drawTile(color, this.tiles[this.count]);
+      g.drawImage(this.tiles[this.count], cellX, cellY, null);
+      this.count++;
+    } else {  // Too many colors, so draw it the long way
+      g.setColor(color);
+      g.fillRect(cellX, cellY, this.cell, this.cell);
+      g.setColor((this.grid) ? Color.GRAY : TetrisCell.COLOR_EMPTY);
+      g.drawRect(cellX, cellY, this.cell, this.cell);
+    }
+  }
+
+  /** PURPOSE: Return a tile of the given color at the size of a cell, with
+   *  the grid line around it, drawn into the given image if it is already
+   *  that size.  */
+  private BufferedImage drawTile(Color color, BufferedImage tile) {
+    int side = Math.max(1, this.cell + 1);
+    if (tile == null || tile.getWidth() != side) {
+      tile = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+    }
+
+    Graphics g = tile.createGraphics();
+    g.setColor(color);
+    g.fillRect(0, 0, side, side);
+    g.setColor((this.grid) ? Color.GRAY : TetrisCell.COLOR_EMPTY);
+    g.drawRect(0, 0, side - 1, side - 1);
+    g.dispose();
+    return tile;
+  }
+
+  /** PURPOSE: Draw the text and tables on the right that never change into
+   *  an image, from the top of the window down to the dimensions table,
+   *  with the tables at the left edge.  */
+  private void drawFixed() {
+    this.fixed = new BufferedImage(this.stretch + margin, this.bottom + 1,
+                                   BufferedImage.TYPE_INT_RGB);
+    Graphics g = this.fixed.createGraphics();
+    g.setColor(Color.WHITE);
+    g.fillRect(0, 0, this.fixed.getWidth(), this.fixed.getHeight());
+
+    int x = 0;  // Horizontal offset
+    int y = (margin * 3);  // Vertical offset
+    int stretch = this.stretch;
+
+    // Headers
+    g.setColor(Color.BLACK);
+    g.setFont(TITLE_FONT);
+    g.drawString("UW TETRIS", x, y);
+    y += sectionMargin;
+    g.setFont(TEXT_FONT);
+    g.drawString("Brenn Berliner", x, y);
+    y += textMargin;
+    g.drawString("ARCH 486, Spring 2009", x, y);
+
+    // Game status
+    y += sectionMargin;
+    int tableHeight = STATUS_HEIGHT;
+    g.drawRect(x, y, stretch, tableHeight);
+    int tableX = x;
+    int tableY = y + 13;
+    g.drawString("LINES: ", tableX + innerMargin, tableY + innerMargin);
+    g.drawString("SCORE: ", tableX + innerMargin,
+                 tableY + innerMargin + textMargin);
+    g.drawString("LEVEL: ", tableX + innerMargin,
+                 tableY + innerMargin + (textMargin * 2));
+
+    // Game commands
+    y += sectionMargin + tableHeight;
+    tableHeight = (innerMargin * 2) + (textMargin * 4);
+    g.drawRect(x, y, stretch, tableHeight);
+    tableY = y + 13;
+    g.drawString("1:  Play Game", tableX + innerMargin,
+                 tableY + innerMargin);
+    g.drawString("2:  Watch Game", tableX + innerMargin,
+                 tableY + innerMargin + textMargin);
+    g.drawLine(tableX,
+               tableY - 13 + (innerMargin * 3) + (textMargin * 2),
+               tableX + stretch,
+               tableY - 13 + (innerMargin * 3) + (textMargin * 2));
+    g.drawString("3:  Pause", tableX + innerMargin,
+                 tableY + innerMargin + (textMargin * 3));
+
+    // Game controls
+    y += sectionMargin + tableHeight;
+    tableHeight = (innerMargin * 2) + (textMargin * 6);
+    g.drawRect(x, y, stretch, tableHeight);
+    tableY = y + 13;
+    g.drawString('\u25c4' + "  or  G:  Left", tableX + innerMargin,
+                 tableY + innerMargin);
+    g.drawString('\u25ba' + "  or  J:  Right", tableX + innerMargin,
+                 tableY + innerMargin + textMargin);
+    g.drawString('\u25b2' + "  or  H:  Rotate", tableX + innerMargin,
+                 tableY + innerMargin + (textMargin * 2));
+    g.drawString("B:  Down", tableX + innerMargin,
+                 tableY + innerMargin + (textMargin * 3));
+    g.drawLine(tableX,
+               tableY - 13 + (innerMargin * 3) + (textMargin * 4),
+               tableX + stretch,
+               tableY - 13 + (innerMargin * 3) + (textMargin * 4));
+    g.drawString('\u25bc' + "  or  Space:  Drop", tableX + innerMargin,
+                 tableY + innerMargin + (textMargin * 5));
+
+    // Dimensions
+    y += sectionMargin + tableHeight;
+    tableHeight = (innerMargin * 2) + textMargin;
+    g.drawRect(x, y, stretch, tableHeight);
+    tableY = y + 13;
+    g.drawString(this.size, tableX + innerMargin, tableY + innerMargin);
+
+    g.dispose();
+  }
+
+  /** PURPOSE: Draw the game over box into an image, with the box at its
+   *  top left corner.  */
+  private void drawEnding() {
+    int tableHeight = (innerMargin * 2) + textMargin;
+    this.ending = new BufferedImage(this.stretch + 1, tableHeight + 1,
+                                    BufferedImage.TYPE_INT_RGB);
+    Graphics g = this.ending.createGraphics();
+    g.setColor(Color.WHITE);
+    g.fillRect(0, 0, this.ending.getWidth(), this.ending.getHeight());
+    g.setColor(Color.BLACK);
+    g.drawRect(0, 0, this.stretch, tableHeight);
+    g.setColor(Color.RED);
+    g.setFont(TITLE_FONT);
+    g.drawString("GAME OVER!", innerMargin, 13 + innerMargin);
+    g.dispose();
+  }
+
+  /** PURPOSE: Draw the numbers of the game status table. */
+  private void drawStatus(Graphics g, int lines, int score, int level) {
+    int valueX = this.x + innerMargin + valueMargin;
+    int valueY = STATUS_Y + 13 + innerMargin;
+    g.setFont(TEXT_FONT);
+    g.setColor(Color.RED);
+    this.drawNumber(g, lines, false, valueX, valueY);
+    g.setColor(Color.BLUE);
+    this.drawNumber(g, score, true, valueX, valueY + textMargin);
+    g.setColor(Color.GREEN);
+    this.drawNumber(g, level, false, valueX, valueY + (textMargin * 2));
+  }
+
+  /** PURPOSE: Draw a number at the given position, with the grouping
+   *  separator of the default locale if requested, without allocating.  */
+  private void drawNumber(Graphics g, int value, boolean grouped,
+                          int x, int y) {
+    char[] text = this.digits;
+    int pos = text.length;
+    long rest = Math.abs((long)value);
+    int count = 0;
+
+    do {
+      if (grouped && count > 0 && count % 3 == 0) text[--pos] = this.separator;
+      text[--pos] = (char)('0' + (rest % 10));
+      rest /= 10;
+      count++;
+    } while (rest > 0);
+    if (value < 0) text[--pos] = '-';
+
+    g.drawChars(text, pos, text.length - pos, x, y);
+  }
+
+}